@@ -2,15 +2,27 @@ package com.hmdp.config;
 
 import com.baomidou.mybatisplus.annotation.DbType;
 import com.baomidou.mybatisplus.extension.plugins.MybatisPlusInterceptor;
+import com.baomidou.mybatisplus.extension.plugins.handler.TableNameHandler;
+import com.baomidou.mybatisplus.extension.plugins.inner.DynamicTableNameInnerInterceptor;
 import com.baomidou.mybatisplus.extension.plugins.inner.PaginationInnerInterceptor;
+import com.hmdp.utils.OrderShardRouter;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 
+import java.util.Collections;
+
 @Configuration
 public class MybatisConfig {
     @Bean
-    public MybatisPlusInterceptor mybatisPlusInterceptor() {
+    public MybatisPlusInterceptor mybatisPlusInterceptor(OrderShardRouter orderShardRouter) {
         MybatisPlusInterceptor interceptor = new MybatisPlusInterceptor();
+        if(orderShardRouter.isSharded()){
+            // rewrite tb_voucher_order to the shard picked by OrderShardRouter, must run before pagination
+            DynamicTableNameInnerInterceptor dynamicTableName = new DynamicTableNameInnerInterceptor();
+            TableNameHandler handler = (sql, tableName) -> orderShardRouter.tableName(tableName);
+            dynamicTableName.setTableNameHandlerMap(Collections.singletonMap(OrderShardRouter.ORDER_TABLE, handler));
+            interceptor.addInnerInterceptor(dynamicTableName);
+        }
         interceptor.addInnerInterceptor(new PaginationInnerInterceptor(DbType.MYSQL));
         return interceptor;
     }
@@ -36,8 +36,7 @@ public class ShopController {
      */
     @PostMapping
     public Result saveShop(@RequestBody Shop shop) {
-        shopService.save(shop);
-        return Result.ok(shop.getId());
+        return shopService.saveShop(shop);
     }
 
     /**
@@ -83,4 +82,13 @@ public class ShopController {
                 .page(new Page<>(current, SystemConstants.MAX_PAGE_SIZE));
         return Result.ok(page.getRecords());
     }
+
+    /**
+     * Shop cache stats
+     * @return hit ratio of the local and redis tier, invalidation lag
+     */
+    @GetMapping("/cache/stats")
+    public Result queryCacheStats() {
+        return shopService.queryCacheStats();
+    }
 }
@@ -38,6 +38,20 @@ public class VoucherController {
         return Result.ok(voucher.getId());
     }
 
+    /**
+     * Reconcile Redis stock and buyers of a hot topic voucher with the database
+     * @param id voucher id
+     * @param repair also fix Redis
+     * @param force run even while the sale is live
+     * @return difference report
+     */
+    @PostMapping("seckill/reconcile/{id}")
+    public Result reconcileSeckillVoucher(@PathVariable("id") Long id,
+                                          @RequestParam(value = "repair", defaultValue = "false") boolean repair,
+                                          @RequestParam(value = "force", defaultValue = "false") boolean force) {
+        return voucherService.reconcileSeckillVoucher(id, repair, force);
+    }
+
     /**
      * Check shop voucher list
      * @param shopId shop id
@@ -4,12 +4,16 @@ package com.hmdp.controller;
 import com.hmdp.dto.Result;
 import com.hmdp.service.IVoucherOrderService;
 import com.hmdp.service.IVoucherService;
+import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestBody;
 import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
 
 import javax.annotation.Resource;
+import java.util.List;
 
 
 @RestController
@@ -23,4 +27,65 @@ public class VoucherOrderController {
     public Result seckillVoucher(@PathVariable("id") Long voucherId) {
         return voucherOrderService.seckillVoucher(voucherId);
     }
+
+    /**
+     * Seckill several vouchers in one request, e.g. everything picked from one shop
+     * @param voucherIds voucher ids
+     * @param allOrNothing order none of them when one can't be ordered
+     * @return result and order id per voucher
+     */
+    @PostMapping("seckill/batch")
+    public Result seckillVouchers(@RequestBody List<Long> voucherIds,
+                                  @RequestParam(value = "allOrNothing", defaultValue = "true") boolean allOrNothing) {
+        return voucherOrderService.seckillVouchers(voucherIds, allOrNothing);
+    }
+
+    /**
+     * Order by id, goes straight to the shard encoded in the id
+     * @param orderId order id
+     * @return the order
+     */
+    @GetMapping("{id}")
+    public Result queryOrderById(@PathVariable("id") Long orderId) {
+        return voucherOrderService.queryOrderById(orderId);
+    }
+
+    /**
+     * Result of a seckill order, read from Redis only
+     * @param orderId order id returned by seckill
+     * @return QUEUED, CREATED or FAILED
+     */
+    @GetMapping("status/{orderId}")
+    public Result queryOrderStatus(@PathVariable("orderId") Long orderId) {
+        return voucherOrderService.queryOrderStatus(orderId);
+    }
+
+    /**
+     * Orders that kept failing, oldest first
+     * @param count max entries
+     * @return dead lettered records with the failure reason
+     */
+    @GetMapping("dlq")
+    public Result queryDeadLetters(@RequestParam(value = "count", defaultValue = "20") Integer count) {
+        return voucherOrderService.queryDeadLetters(count);
+    }
+
+    /**
+     * Put dead lettered orders back on the order stream, oldest first
+     * @param count max entries to replay
+     * @return number of replayed orders
+     */
+    @PostMapping("dlq/replay")
+    public Result replayDeadLetters(@RequestParam(value = "count", defaultValue = "100") Integer count) {
+        return voucherOrderService.replayDeadLetters(count);
+    }
+
+    /**
+     * Order pipeline stats
+     * @return drain throughput of the order stream consumer
+     */
+    @GetMapping("stats")
+    public Result queryOrderStats() {
+        return voucherOrderService.queryOrderStats();
+    }
 }
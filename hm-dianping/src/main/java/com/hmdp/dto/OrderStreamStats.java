@@ -0,0 +1,18 @@
+package com.hmdp.dto;
+
+import lombok.Data;
+
+@Data
+public class OrderStreamStats {
+    // XLEN of the order stream
+    private Long length;
+    // Entries delivered to group g1 and not ACKed yet
+    private Long pending;
+    // Age of the oldest pending entry
+    private Long oldestPendingAgeMs;
+    // Entries not delivered to group g1 yet
+    private Long lag;
+    // Consumers in group g1
+    private Long consumers;
+    private Long sampledAt;
+}
@@ -2,8 +2,10 @@ package com.hmdp.mapper;
 
 import com.hmdp.entity.Shop;
 import com.baomidou.mybatisplus.core.mapper.BaseMapper;
+import org.apache.ibatis.cursor.Cursor;
 
 
 public interface ShopMapper extends BaseMapper<Shop> {
 
+    Cursor<Long> scanIds();
 }
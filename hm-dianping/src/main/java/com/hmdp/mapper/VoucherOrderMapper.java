@@ -2,8 +2,15 @@ package com.hmdp.mapper;
 
 import com.hmdp.entity.VoucherOrder;
 import com.baomidou.mybatisplus.core.mapper.BaseMapper;
+import org.apache.ibatis.annotations.Param;
+import org.apache.ibatis.cursor.Cursor;
+
+import java.util.List;
 
 
 public interface VoucherOrderMapper extends BaseMapper<VoucherOrder> {
 
+    int insertBatch(@Param("orders") List<VoucherOrder> orders);
+
+    Cursor<Long> scanUserIds(@Param("voucherId") Long voucherId);
 }
@@ -4,10 +4,28 @@ import com.hmdp.dto.Result;
 import com.hmdp.entity.VoucherOrder;
 import com.baomidou.mybatisplus.extension.service.IService;
 
+import java.util.List;
+
 
 public interface IVoucherOrderService extends IService<VoucherOrder> {
 
     Result seckillVoucher(Long voucherId);
 
-    void createVoucherOrder(VoucherOrder voucherOrder);
+    Result seckillVouchers(List<Long> voucherIds, boolean allOrNothing);
+
+    boolean createVoucherOrder(VoucherOrder voucherOrder);
+
+    List<VoucherOrder> createVoucherOrders(List<VoucherOrder> voucherOrders);
+
+    List<VoucherOrder> cancelUnpaidOrders(List<Long> orderIds);
+
+    Result queryOrderById(Long orderId);
+
+    Result queryOrderStatus(Long orderId);
+
+    Result queryDeadLetters(Integer count);
+
+    Result replayDeadLetters(Integer count);
+
+    Result queryOrderStats();
 }
@@ -10,4 +10,6 @@ public interface IVoucherService extends IService<Voucher> {
     Result queryVoucherOfShop(Long shopId);
 
     void addSeckillVoucher(Voucher voucher);
+
+    Result reconcileSeckillVoucher(Long voucherId, boolean repair, boolean force);
 }
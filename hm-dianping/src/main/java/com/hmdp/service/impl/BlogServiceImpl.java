@@ -52,11 +52,10 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
                 .orderByDesc("liked")
                 .page(new Page<>(current, SystemConstants.MAX_PAGE_SIZE));
         List<Blog> records = page.getRecords();
+        // query blog users, one cache round trip for the page
+        queryBlogUsers(records);
         records.forEach(
                 blog -> {
-                    // query blog user
-                    this.queryBlogUser(blog);
-
                     // check if blog is already liked
                     isBlogLiked(blog);
 
@@ -237,8 +236,8 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
 
 
         // get blog like and blog user
+        queryBlogUsers(blogs);
         for(Blog blog: blogs){
-            queryBlogUser(blog);
             isBlogLiked(blog);
         }
 
@@ -260,4 +259,16 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
         blog.setName(user.getNickName());
         blog.setIcon(user.getIcon());
     }
+
+    private void queryBlogUsers(List<Blog> blogs) {
+        List<Long> userIds = blogs.stream().map(Blog::getUserId).collect(Collectors.toList());
+        List<UserDTO> users = userService.queryUsersByIds(userIds);
+        for (int i = 0; i < blogs.size(); i++) {
+            UserDTO user = users.get(i);
+            if(user != null){
+                blogs.get(i).setName(user.getNickName());
+                blogs.get(i).setIcon(user.getIcon());
+            }
+        }
+    }
 }
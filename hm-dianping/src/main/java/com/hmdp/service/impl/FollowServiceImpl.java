@@ -15,6 +15,7 @@ import org.springframework.stereotype.Service;
 import javax.annotation.Resource;
 import java.util.Collections;
 import java.util.List;
+import java.util.Objects;
 import java.util.Set;
 import java.util.stream.Collectors;
 
@@ -90,9 +91,9 @@ public class FollowServiceImpl extends ServiceImpl<FollowMapper, Follow> impleme
 
         List<Long> ids = intersect.stream().map(Long::valueOf).collect(Collectors.toList());
 
-        List<UserDTO> users = userService.listByIds(ids)
+        List<UserDTO> users = userService.queryUsersByIds(ids)
                 .stream()
-                .map(user -> BeanUtil.copyProperties(user, UserDTO.class))
+                .filter(Objects::nonNull)
                 .collect(Collectors.toList());
 
         return Result.ok(users);
@@ -1,5 +1,6 @@
 package com.hmdp.service.impl;
 
+import cn.hutool.core.bean.BeanUtil;
 import cn.hutool.core.util.BooleanUtil;
 import cn.hutool.core.util.StrUtil;
 import cn.hutool.json.JSONObject;
@@ -12,6 +13,7 @@ import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
 import com.hmdp.utils.CacheClient;
 import com.hmdp.utils.RedisConstants;
 import com.hmdp.utils.RedisData;
+import com.hmdp.utils.ShopBloomFilter;
 import com.hmdp.utils.SystemConstants;
 import org.springframework.data.geo.Distance;
 import org.springframework.data.geo.GeoResult;
@@ -28,11 +30,15 @@ import javax.annotation.Resource;
 import java.time.LocalDateTime;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.stream.Collectors;
 
 import static com.hmdp.utils.RedisConstants.*;
 
@@ -46,14 +52,20 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
     @Resource
     private CacheClient cacheClient;
 
+    @Resource
+    private ShopBloomFilter shopBloomFilter;
+
 
     @Override
     public Result queryById(Long id) {
         // Cache Penetration
-        // Shop shop = cacheClient.queryWithPassThrough(CACHE_SHOP_KEY, id, Shop.class, this::getById, CACHE_SHOP_TTL, TimeUnit.MINUTES );
+        // Shop shop = cacheClient.queryWithPassThrough(CACHE_SHOP_KEY, id, Shop.class, this::getById, CACHE_SHOP_TTL, TimeUnit.MINUTES, shopBloomFilter::mightContain);
 
-        // Cache Breakdown (Logical Expiration)
-        Shop shop = cacheClient.queryWithLogicalExpire(CACHE_SHOP_KEY, id, Shop.class, this::getById, CACHE_SHOP_TTL, TimeUnit.MINUTES);
+        // Cache Breakdown (Mutex Lock)
+        // Shop shop = cacheClient.queryWithMutex(CACHE_SHOP_KEY, id, Shop.class, this::getById, CACHE_SHOP_TTL, TimeUnit.MINUTES);
+
+        // Cache Breakdown (Logical Expiration), ids not in the bloom filter don't exist
+        Shop shop = cacheClient.queryWithLogicalExpire(CACHE_SHOP_KEY, id, Shop.class, this::getById, CACHE_SHOP_TTL, TimeUnit.MINUTES, shopBloomFilter::mightContain);
 
         if(shop == null){
            return Result.fail("Shop Not Found");
@@ -117,61 +129,9 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
     }
 
 
-    // Cache Breakdown (Mutex Lock)
+    // Cache Breakdown (Mutex Lock), concurrent misses in this JVM share one load instead of spinning on the lock
     public Shop queryWithMutex(Long id){
-        String key = CACHE_SHOP_KEY + id;
-
-        // 1. Get cache from redis
-        String shopJson = stringRedisTemplate.opsForValue().get(key);
-
-        // 2. if cache exist, return cache
-        if(StrUtil.isNotBlank(shopJson)){
-            Shop shop = JSONUtil.toBean(shopJson, Shop.class);
-            return shop;
-        }
-
-        // Check if the redis cache is null or empty
-        if(shopJson != null){
-            // return error
-            return null;
-        }
-
-        String lockKey = "lock:shop:" + id;
-        Shop shop = null;
-
-        try {
-            // 3.1 get mutex lock
-            boolean isLock = tryLock(lockKey);
-
-            // 3.2 check if get success
-            if(!isLock){
-                // 3.3 if fail, sleep and retry
-                Thread.sleep(50);
-                return queryWithMutex(id);
-            }
-
-            // 3.4 if success, query db
-            shop = getById(id);
-            // Mock rebuild delay
-            Thread.sleep(200);
-            // 4. if no data found from DB, return error
-            if(shop == null){
-                // add null value to cache to prevent cache penetration
-                stringRedisTemplate.opsForValue().set(key, "", CACHE_NULL_TTL, TimeUnit.MINUTES);
-                return null;
-            }
-
-            // 5. if data found, save to redis and return
-            stringRedisTemplate.opsForValue().set(key, JSONUtil.toJsonStr(shop), CACHE_SHOP_TTL, TimeUnit.MINUTES);
-        } catch (InterruptedException e) {
-            throw new RuntimeException(e);
-        }
-        finally {
-            // 6. release mutex lock
-            unlock(lockKey);
-        }
-
-        return shop;
+        return cacheClient.queryWithMutex(CACHE_SHOP_KEY, id, Shop.class, this::getById, CACHE_SHOP_TTL, TimeUnit.MINUTES);
     }
 
     // Cache Penetration
@@ -228,14 +188,17 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
         // 1. Query shop info
         Shop shop = getById(id);
 
-        // 2. set the expire time
-        RedisData redisData = new RedisData();
-        redisData.setData(shop);
-        redisData.setExpireTime(LocalDateTime.now().plusSeconds(expireSeconds));
+        // 2. save to redis with the expire time, in the configured cache codec
+        cacheClient.setLogicalExpire(CACHE_SHOP_KEY + id, shop, expireSeconds, TimeUnit.SECONDS);
 
-        // 3. save to redis
-        stringRedisTemplate.opsForValue().set(CACHE_SHOP_KEY + id, JSONUtil.toJsonStr(redisData));
+    }
 
+    @Override
+    public Result saveShop(Shop shop) {
+        save(shop);
+        // known to every node before anyone asks for it
+        shopBloomFilter.add(shop.getId());
+        return Result.ok(shop.getId());
     }
 
     @Override
@@ -252,12 +215,20 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
         updateById(shop);
 
 
-        // 2. update cache
-        stringRedisTemplate.delete(CACHE_SHOP_KEY + shop.getId());
+        // 2. update cache, every node drops its local copy too
+        cacheClient.delete(CACHE_SHOP_KEY + shop.getId());
+        cacheClient.delete(CACHE_SHOP_BATCH_KEY + shop.getId());
 
         return Result.ok();
     }
 
+    @Override
+    public Result queryCacheStats() {
+        Map<String, Object> stats = new LinkedHashMap<>(cacheClient.getStats());
+        stats.put("bloom", shopBloomFilter.getStats());
+        return Result.ok(stats);
+    }
+
     @Override
     public Result queryShopByType(Integer typeId, Integer current, Double x, Double y) {
 
@@ -310,9 +281,15 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
                 }
         );
 
-        // get shop by id
-        String idStr = StrUtil.join(",", ids);
-        List<Shop> shops = query().in("id", ids).last("ORDER BY FIELD ( id," + idStr + ")").list();
+        // get shop by id, cached shops in one round trip and one IN query for the rest, already in distance order
+        List<Shop> shops = cacheClient.queryBatch(CACHE_SHOP_BATCH_KEY, ids, Shop.class,
+                missing -> listByIds(missing).stream().collect(Collectors.toMap(Shop::getId, Function.identity())),
+                CACHE_SHOP_TTL, TimeUnit.MINUTES)
+                .stream()
+                .filter(Objects::nonNull)
+                // copy, cached instances are shared and the distance is per request
+                .map(shop -> BeanUtil.copyProperties(shop, Shop.class))
+                .collect(Collectors.toList());
 
         for(Shop shop : shops){
             shop.setDistance(distanceMap.get(shop.getId().toString()).getValue());
@@ -11,6 +11,7 @@ import com.hmdp.dto.UserDTO;
 import com.hmdp.entity.User;
 import com.hmdp.mapper.UserMapper;
 import com.hmdp.service.IUserService;
+import com.hmdp.utils.CacheClient;
 import com.hmdp.utils.RegexUtils;
 import com.hmdp.utils.UserHolder;
 import lombok.extern.slf4j.Slf4j;
@@ -28,6 +29,8 @@ import java.util.List;
 import java.util.Map;
 import java.util.Objects;
 import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.stream.Collectors;
 
 import static com.hmdp.utils.RedisConstants.*;
 import static com.hmdp.utils.SystemConstants.USER_NICK_NAME_PREFIX;
@@ -40,6 +43,9 @@ public class UserServiceImpl extends ServiceImpl<UserMapper, User> implements IU
     @Resource
     private StringRedisTemplate stringRedisTemplate;
 
+    @Resource
+    private CacheClient cacheClient;
+
     @Override
     public Result sendCode(String phone, HttpSession session) {
         // 1. Validate Phone number
@@ -180,6 +186,16 @@ public class UserServiceImpl extends ServiceImpl<UserMapper, User> implements IU
     }
 
 
+    @Override
+    public List<UserDTO> queryUsersByIds(List<Long> ids) {
+        // only the public fields are cached, null for unknown ids
+        return cacheClient.queryBatch(CACHE_USER_KEY, ids, UserDTO.class,
+                missing -> listByIds(missing).stream()
+                        .map(user -> BeanUtil.copyProperties(user, UserDTO.class))
+                        .collect(Collectors.toMap(UserDTO::getId, Function.identity())),
+                CACHE_USER_TTL, TimeUnit.MINUTES);
+    }
+
     private User createUserWithPhone(String phone){
         User user = new User();
         user.setPhone(phone);
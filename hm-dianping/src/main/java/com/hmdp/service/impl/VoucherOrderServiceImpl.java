@@ -1,38 +1,72 @@
 package com.hmdp.service.impl;
 
 import cn.hutool.core.bean.BeanUtil;
+import cn.hutool.core.util.NumberUtil;
+import cn.hutool.core.util.StrUtil;
 import com.hmdp.dto.Result;
-import com.hmdp.entity.SeckillVoucher;
 import com.hmdp.entity.VoucherOrder;
 import com.hmdp.mapper.VoucherOrderMapper;
 import com.hmdp.service.ISeckillVoucherService;
 import com.hmdp.service.IVoucherOrderService;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
+import com.hmdp.utils.NodeIdentity;
+import com.hmdp.utils.OrderShardRouter;
+import com.hmdp.utils.OrderStreamMonitor;
+import com.hmdp.utils.OrderTimeoutCanceller;
+import com.hmdp.utils.RateMeter;
+import com.hmdp.utils.RedisScriptRegistry;
 import com.hmdp.utils.RedisWorker;
-import com.hmdp.utils.SimpleRedisLock;
-import com.hmdp.utils.UserHolder;
+import com.hmdp.utils.SeckillAdmissionGate;
+import com.hmdp.utils.SeckillSoldOutCache;
+import com.hmdp.utils.SeckillStockLease;
+import com.hmdp.utils.SeckillStockSegments;
 import lombok.extern.slf4j.Slf4j;
-import org.redisson.api.RLock;
-import org.redisson.api.RedissonClient;
-import org.springframework.aop.framework.AopContext;
-import org.springframework.core.io.ClassPathResource;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Lazy;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.data.domain.Range;
+import org.springframework.data.redis.connection.RedisZSetCommands;
+import org.springframework.data.redis.connection.StringRedisConnection;
 import org.springframework.data.redis.connection.stream.*;
+import org.springframework.data.redis.core.RedisCallback;
 import org.springframework.data.redis.core.StringRedisTemplate;
-import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.data.redis.serializer.RedisSerializer;
+import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.interceptor.TransactionAspectSupport;
 
 import javax.annotation.PostConstruct;
 import javax.annotation.Resource;
 import java.time.Duration;
-import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
 import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Collectors;
+
+import static com.hmdp.utils.RedisConstants.ORDER_DLQ_KEY;
+import static com.hmdp.utils.RedisConstants.ORDER_STATUS_CREATED;
+import static com.hmdp.utils.RedisConstants.ORDER_STATUS_FAILED;
+import static com.hmdp.utils.RedisConstants.ORDER_STATUS_KEY;
+import static com.hmdp.utils.RedisConstants.ORDER_STATUS_QUEUED;
+import static com.hmdp.utils.RedisConstants.ORDER_STREAM_GROUP;
+import static com.hmdp.utils.RedisConstants.ORDER_TIMEOUT_KEY;
+import static com.hmdp.utils.RedisConstants.ORDER_STREAM_KEY;
+import static com.hmdp.utils.RedisConstants.SECKILL_WINDOW_KEY;
 
 
 @Slf4j
@@ -48,115 +82,599 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
     @Resource
     private StringRedisTemplate stringRedisTemplate;
 
+    @Resource
+    private RedisScriptRegistry redisScriptRegistry;
+
 
     @Resource
-    private RedissonClient redissonClient;
+    private SeckillSoldOutCache seckillSoldOutCache;
 
+    @Resource
+    private SeckillStockSegments seckillStockSegments;
 
-    private static final DefaultRedisScript<Long> SECKILL_SCRIPT;
+    @Resource
+    private SeckillStockLease seckillStockLease;
+
+    @Resource
+    private NodeIdentity nodeIdentity;
+
+    @Resource
+    private SeckillAdmissionGate seckillAdmissionGate;
+
+    @Resource
+    private OrderStreamMonitor orderStreamMonitor;
+
+    @Resource
+    private OrderTimeoutCanceller orderTimeoutCanceller;
+
+    @Resource
+    private OrderShardRouter orderShardRouter;
 
-    static {
-        SECKILL_SCRIPT = new DefaultRedisScript<>();
-        SECKILL_SCRIPT.setLocation(new ClassPathResource("seckill.lua"));
-        SECKILL_SCRIPT.setResultType(Long.class);
-    }
 
     private static final ExecutorService seckill_order_executor = Executors.newSingleThreadExecutor();
 
+    // How often lane mode walks this consumer's pending list for records that failed on a lane
+    private static final long PENDING_SWEEP_INTERVAL_MS = 5000;
+
+    // Wait of the reader after an error, doubles per error in a row
+    private static final long CONSUMER_BACKOFF_MS = 100;
+
+    private static final long CONSUMER_MAX_BACKOFF_MS = 5000;
+
+    // Fields added to a record when it is dead lettered, dropped again on replay
+    private static final Set<String> DEAD_LETTER_FIELDS = new HashSet<>(Arrays.asList("sourceId", "attempts", "reason", "consumer"));
+
+    // Max records per XREADGROUP, 1 falls back to one message per transaction
+    @Value("${hmdp.order.batch-size:100}")
+    private int batchSize;
+
+    // Max time to wait for a batch to fill up after the first record arrives
+    @Value("${hmdp.order.max-linger:50ms}")
+    private Duration maxLinger;
+
+    // Worker lanes, records are routed by user id so every user is handled in order by one lane.
+    // 0 processes everything on the reader thread
+    @Value("${hmdp.order.lanes:4}")
+    private int laneCount;
+
+    // Max records queued per lane, the reader blocks once a lane is full
+    @Value("${hmdp.order.lane-queue-depth:1024}")
+    private int laneQueueDepth;
+
+    // Name of this instance in the consumer group, defaults to app-host-port so every node gets its own pending list
+    @Value("${hmdp.order.consumer-name:}")
+    private String consumerName;
+
+    // Pending entries idle longer than this are taken over from other consumers
+    @Value("${hmdp.order.reclaim.min-idle:60s}")
+    private Duration reclaimMinIdle;
+
+    // Entries delivered more often than this are dead lettered instead of retried
+    @Value("${hmdp.order.reclaim.max-deliveries:5}")
+    private long reclaimMaxDeliveries;
+
+    // Pending entries inspected per XPENDING call
+    @Value("${hmdp.order.reclaim.batch-size:100}")
+    private int reclaimBatchSize;
+
+    // Consumers with nothing pending that have been idle this long are removed from the group
+    @Value("${hmdp.order.reclaim.dead-consumer-idle:1h}")
+    private Duration deadConsumerIdle;
+
+    // How long the order status stays readable for polling clients
+    @Value("${hmdp.order.status-ttl:30m}")
+    private Duration statusTtl;
+
+    // Attempts on this node before a record goes to the dead letter stream
+    @Value("${hmdp.order.retry.max-attempts:5}")
+    private int retryMaxAttempts;
+
+    // Wait before the first retry of a failed record, doubles per attempt
+    @Value("${hmdp.order.retry.backoff:1s}")
+    private Duration retryBackoff;
+
+    @Value("${hmdp.order.retry.max-backoff:60s}")
+    private Duration retryMaxBackoff;
+
+    // Records that failed and wait for their next attempt
+    private final Map<RecordId, OrderFailure> failures = new ConcurrentHashMap<>();
+
+    private final LongAdder deadLettered = new LongAdder();
+
+    private final LongAdder reclaimed = new LongAdder();
+
+    // Failures caused by bugs on this node rather than by the order, shown apart in the stats
+    private final LongAdder programmingErrors = new LongAdder();
+
+    // Backlog of stream.orders (pending + lag) above which seckill is degraded, 0 = off
+    @Value("${hmdp.seckill.backpressure.max-backlog:0}")
+    private long maxBacklog;
+
+    // reject = turn requests away, queue = accept them, /voucher-order/status/{orderId} tells how long the order will take
+    @Value("${hmdp.seckill.backpressure.mode:reject}")
+    private String backpressureMode;
+
+    // Max distinct vouchers in one checkout, bounds the time the batch script holds Redis
+    @Value("${hmdp.seckill.max-checkout-size:20}")
+    private int maxCheckoutSize;
+
+    private final LongAdder backpressureRejected = new LongAdder();
+
+    private final LongAdder backpressureQueued = new LongAdder();
+
+    private ExecutorService seckill_lane_executor;
+
+    private OrderLane[] lanes;
+
+    // Records handed to a lane but not ACKed yet, the pending sweep skips them
+    private final Set<RecordId> inFlight = ConcurrentHashMap.newKeySet();
+
+    // Records ACKed in lane mode since the current pending sweep started. The sweep may have listed them
+    // as pending just before the ACK, and they leave inFlight right after it, so dispatch skips them too
+    private final Set<RecordId> ackedSinceSweep = ConcurrentHashMap.newKeySet();
+
+    private final RateMeter drainMeter = new RateMeter(1000);
+
+    private final LongAdder drainedBatches = new LongAdder();
+
 
 
     @PostConstruct
     private void init(){
+        if(StrUtil.isBlank(consumerName)){
+            consumerName = nodeIdentity.getName();
+        }
+        createGroupIfAbsent();
+        log.info("Joined {} group {} as consumer {}", ORDER_STREAM_KEY, ORDER_STREAM_GROUP, consumerName);
+
+        if(laneCount > 0){
+            lanes = new OrderLane[laneCount];
+            seckill_lane_executor = Executors.newFixedThreadPool(laneCount);
+            for (int i = 0; i < laneCount; i++) {
+                lanes[i] = new OrderLane(i);
+                seckill_lane_executor.submit(lanes[i]);
+            }
+        }
         seckill_order_executor.submit(new VoucherOrderHandler());
     }
 
 
 
     private class VoucherOrderHandler implements Runnable{
-        String queueName = "stream.orders";
+        String queueName = ORDER_STREAM_KEY;
+
+        private long nextPendingSweep;
+
+        // Errors in a row, the wait before the next try doubles with each one
+        private int errors;
+
         @Override
         public void run(){
             while(true){
                 try {
-                    // Process pending list first
-                    handlePendingList();
+                    // Retry records left in the pending list that are due
+                    sweepPendingList();
 
                     // Read new messages with blocking read
                     List<MapRecord<String, Object, Object>> list = stringRedisTemplate.opsForStream().read(
-                            Consumer.from("g1", "c1"),
-                            StreamReadOptions.empty().count(1).block(Duration.ofSeconds(2)),
+                            Consumer.from(ORDER_STREAM_GROUP, consumerName),
+                            StreamReadOptions.empty().count(Math.max(batchSize, 1)).block(Duration.ofSeconds(2)),
                             StreamOffset.create(queueName, ReadOffset.lastConsumed())
                     );
+                    errors = 0;
 
                     if(list == null || list.isEmpty()){
                         continue;
                     }
 
-                    // Process each message
-                    for (MapRecord<String, Object, Object> record : list) {
-                        Map<Object, Object> values = record.getValue();
-                        VoucherOrder voucherOrder = BeanUtil.fillBeanWithMap(values, new VoucherOrder(), true);
-
-                        handleVoucherOrder(voucherOrder);
-
-                        // ACK confirm
-                        stringRedisTemplate.opsForStream().acknowledge(queueName, "g1", record.getId());
+                    if(lanes != null){
+                        // Lane mode, this thread only reads and routes, the lanes write orders and ACK
+                        dispatch(list);
+                        continue;
                     }
 
+                    // Batch mode, linger a bit to fill up the batch then write and ACK it in one go
+                    handleRecords(batchSize > 1 ? fillBatch(list) : list);
+
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
                 } catch (Exception e) {
-                    log.error("Redis stream consumer error, retrying in 5s", e);
+                    long backoff = backoffMillis(CONSUMER_BACKOFF_MS, ++errors, CONSUMER_MAX_BACKOFF_MS);
+                    log.error("Redis stream consumer error, retrying in {}ms", backoff, e);
                     try {
-                        Thread.sleep(5000); // Backoff to prevent rapid connection retries
+                        Thread.sleep(backoff); // Backoff to prevent rapid connection retries
                     } catch (InterruptedException ie) {
                         Thread.currentThread().interrupt();
+                        return;
                     }
                 }
             }
         }
 
-        private void handlePendingList() {
+        private void sweepPendingList() throws InterruptedException {
+            long now = System.currentTimeMillis();
+            if(now < nextPendingSweep){
+                return;
+            }
+            nextPendingSweep = now + PENDING_SWEEP_INTERVAL_MS;
+            // anything ACKed before this is no longer in the pending list read below
+            ackedSinceSweep.clear();
+
+            // Walk the pending list of this consumer with XPENDING, which leaves delivery counts alone, and read back
+            // only the records that are due. Records on a lane or still backing off are not read at all, so local
+            // retries never look like redeliveries to the reclaimer
+            Set<RecordId> pending = new HashSet<>();
+            int count = Math.max(batchSize, 1);
+            Range<String> range = Range.unbounded();
             while(true){
-                try {
-                    // get pending list from message queue XREADGROUP GROUP g1 c1 COUNT 1 BLOCK 2000 STREAMS streams.order
-                    List<MapRecord<String, Object, Object>> list = stringRedisTemplate.opsForStream().read(
-                            Consumer.from("g1", "c1"),
-                            StreamReadOptions.empty().count(1),
-                            StreamOffset.create(queueName, ReadOffset.from("0"))
+                // XPENDING stream.orders g1 - + count consumer
+                PendingMessages messages = stringRedisTemplate.opsForStream()
+                        .pending(queueName, Consumer.from(ORDER_STREAM_GROUP, consumerName), range, count);
+                List<MapRecord<String, Object, Object>> due = new ArrayList<>();
+                for (PendingMessage message : messages) {
+                    pending.add(message.getId());
+                    // Already on a lane, or still backing off so it doesn't hold up the records behind it
+                    if(inFlight.contains(message.getId()) || isBackingOff(message.getId())){
+                        continue;
+                    }
+                    // XRANGE stream.orders id id
+                    List<MapRecord<String, Object, Object>> record = stringRedisTemplate.opsForStream()
+                            .range(queueName, Range.closed(message.getIdAsString(), message.getIdAsString()));
+                    if(record != null){
+                        due.addAll(record);
+                    }
+                }
+                if(lanes != null){
+                    dispatch(due);
+                } else {
+                    handleRecords(due);
+                }
+                if(messages.size() < count){
+                    break;
+                }
+                range = Range.rightUnbounded(Range.Bound.exclusive(messages.get(messages.size() - 1).getIdAsString()));
+            }
 
-                    );
+            // Forget failures of records that left this consumer, e.g. claimed by another node
+            failures.keySet().retainAll(pending);
+        }
 
-                    // check if get message success
-                    if(list == null || list.isEmpty()){
-                        // if fail, mean no error message, break
-                        break;
-                    }
+        private List<MapRecord<String, Object, Object>> fillBatch(List<MapRecord<String, Object, Object>> first) {
+            List<MapRecord<String, Object, Object>> batch = new ArrayList<>(first);
+            long deadline = System.currentTimeMillis() + maxLinger.toMillis();
 
-                    // retrieve order record from list
-                    MapRecord<String, Object, Object> record = list.get(0);
-                    Map<Object, Object> values = record.getValue();
-                    VoucherOrder voucherOrder = BeanUtil.fillBeanWithMap(values, new VoucherOrder(), true);
+            while(batch.size() < batchSize){
+                long remaining = deadline - System.currentTimeMillis();
+                if(remaining <= 0){
+                    break;
+                }
+                // remaining is always > 0 here, BLOCK 0 would wait forever
+                List<MapRecord<String, Object, Object>> more = stringRedisTemplate.opsForStream().read(
+                        Consumer.from(ORDER_STREAM_GROUP, consumerName),
+                        StreamReadOptions.empty().count(batchSize - batch.size()).block(Duration.ofMillis(remaining)),
+                        StreamOffset.create(queueName, ReadOffset.lastConsumed())
+                );
+                if(more == null || more.isEmpty()){
+                    break;
+                }
+                batch.addAll(more);
+            }
+            return batch;
+        }
+    }
 
-                    // if get success, place order
-                    handleVoucherOrder(voucherOrder);
+    private class OrderLane implements Runnable{
+        private final int index;
 
-                    // ACK confirm  SACK stream,orders g1 id
-                    stringRedisTemplate.opsForStream().acknowledge(queueName, "g1",record.getId());
+        private final BlockingQueue<MapRecord<String, Object, Object>> queue = new ArrayBlockingQueue<>(laneQueueDepth);
+
+        private final LongAdder processed = new LongAdder();
+
+        OrderLane(int index){
+            this.index = index;
+        }
+
+        @Override
+        public void run(){
+            while(true){
+                try {
+                    // Wait for the first record, then linger a bit to fill up the batch
+                    List<MapRecord<String, Object, Object>> batch = new ArrayList<>(Math.max(batchSize, 1));
+                    batch.add(queue.take());
+                    long deadline = System.currentTimeMillis() + maxLinger.toMillis();
+                    while(batch.size() < batchSize){
+                        queue.drainTo(batch, batchSize - batch.size());
+                        long remaining = deadline - System.currentTimeMillis();
+                        if(batch.size() >= batchSize || remaining <= 0){
+                            break;
+                        }
+                        MapRecord<String, Object, Object> next = queue.poll(remaining, TimeUnit.MILLISECONDS);
+                        if(next == null){
+                            break;
+                        }
+                        batch.add(next);
+                    }
 
-                } catch (Exception e) {
-                    log.error("process pending list order fail", e);
                     try {
-                        Thread.sleep(20);
-                    } catch (InterruptedException ex) {
-                        throw new RuntimeException(ex);
+                        handleRecords(batch);
+                    } finally {
+                        batch.forEach(record -> inFlight.remove(record.getId()));
                     }
+                    processed.add(batch.size());
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                } catch (Exception e) {
+                    log.error("order lane {} error", index, e);
                 }
+            }
+        }
+
+        // How long the oldest queued record has been waiting since it was added to the stream
+        private long getLagMillis(){
+            MapRecord<String, Object, Object> head = queue.peek();
+            return head == null ? 0 : System.currentTimeMillis() - head.getId().getTimestamp();
+        }
+    }
+
+    // XACK stream.orders g1 id1 id2 ..., in lane mode before the lane drops the ids from inFlight
+    private void acknowledge(RecordId... ids) {
+        stringRedisTemplate.opsForStream().acknowledge(ORDER_STREAM_KEY, ORDER_STREAM_GROUP, ids);
+        if(lanes != null){
+            ackedSinceSweep.addAll(Arrays.asList(ids));
+        }
+    }
+
+    // Retry state of a record that failed on this node
+    private static class OrderFailure {
+        private int attempts;
+        private volatile long retryAt;
+    }
+
+    private boolean isBackingOff(RecordId id) {
+        OrderFailure failure = failures.get(id);
+        return failure != null && failure.retryAt > System.currentTimeMillis();
+    }
+
+    private static long backoffMillis(long base, int attempt, long max) {
+        return Math.min(base << Math.min(attempt - 1, 20), max);
+    }
+
+    private void handleRecords(List<MapRecord<String, Object, Object>> records) {
+        if(records.isEmpty()){
+            return;
+        }
+        if(records.size() > 1 && batchSize > 1){
+            try {
+                handleVoucherOrderBatch(records);
+                records.forEach(record -> failures.remove(record.getId()));
+                return;
+            } catch (Exception e) {
+                // The batch rolled back, retry one by one so one bad record doesn't hold back the rest
+                log.error("order batch of {} fail, retrying one by one", records.size(), e);
+            }
+        }
+        for (MapRecord<String, Object, Object> record : records) {
+            try {
+                handleRecord(record);
+                failures.remove(record.getId());
+            } catch (Exception e) {
+                onOrderFailure(record, e);
+            }
+        }
+    }
+
+    private void onOrderFailure(MapRecord<String, Object, Object> record, Exception e) {
+        OrderFailure failure = failures.computeIfAbsent(record.getId(), id -> new OrderFailure());
+        failure.attempts++;
+        // A bug on this node still uses up attempts, so a record that keeps hitting it ends up in the dead letter stream
+        boolean bug = isProgrammingError(e);
+        if(bug){
+            programmingErrors.increment();
+        }
+        if(failure.attempts >= retryMaxAttempts){
+            deadLetter(record, failure.attempts, e.getClass().getSimpleName() + ": " + StrUtil.maxLength(e.getMessage(), 200));
+            return;
+        }
+        // Left in the pending list, the sweep picks it up again once the backoff is over
+        long backoff = backoffMillis(retryBackoff.toMillis(), failure.attempts, retryMaxBackoff.toMillis());
+        failure.retryAt = System.currentTimeMillis() + backoff;
+        log.error("process order {} fail, attempt {}{}, retrying in {}ms", record.getId(), failure.attempts,
+                bug ? " (programming error)" : "", backoff, e);
+    }
 
+    private static boolean isProgrammingError(Throwable e) {
+        for (Throwable current = e; current != null; current = current.getCause()) {
+            if(current instanceof NullPointerException || current instanceof ClassCastException
+                    || current instanceof IndexOutOfBoundsException || current instanceof UnsupportedOperationException){
+                return true;
             }
+        }
+        return false;
+    }
 
+    /**
+     * Move a record that keeps failing to the dead letter stream and take it off the pending list
+     */
+    private void deadLetter(MapRecord<String, Object, Object> record, long attempts, String reason) {
+        Map<String, String> values = new LinkedHashMap<>();
+        record.getValue().forEach((k, v) -> values.put(String.valueOf(k), String.valueOf(v)));
+        values.put("sourceId", record.getId().getValue());
+        values.put("attempts", String.valueOf(attempts));
+        values.put("reason", String.valueOf(reason));
+        values.put("consumer", consumerName);
+        stringRedisTemplate.opsForStream().add(StreamRecords.string(values).withStreamKey(ORDER_DLQ_KEY));
+        acknowledge(record.getId());
+
+        failures.remove(record.getId());
+        deadLettered.increment();
+        String orderId = String.valueOf(record.getValue().get("id"));
+        if(NumberUtil.isLong(orderId)){
+            setOrderStatus(Collections.singletonMap(Long.valueOf(orderId), ORDER_STATUS_FAILED));
+        }
+        log.error("order {} moved to {} after {} attempts: {}", record.getId(), ORDER_DLQ_KEY, attempts, reason);
+    }
 
+    private void createGroupIfAbsent() {
+        try {
+            // XGROUP CREATE stream.orders g1 0 MKSTREAM
+            stringRedisTemplate.opsForStream().createGroup(ORDER_STREAM_KEY, ReadOffset.from("0"), ORDER_STREAM_GROUP);
+        } catch (Exception e) {
+            // BUSYGROUP, another node created it already
+            log.debug("consumer group {} already exists", ORDER_STREAM_GROUP);
         }
     }
 
+    private void dispatch(List<MapRecord<String, Object, Object>> records) throws InterruptedException {
+        if(records == null){
+            return;
+        }
+        for (MapRecord<String, Object, Object> record : records) {
+            // Already sitting on a lane
+            if(!inFlight.add(record.getId())){
+                continue;
+            }
+            // Or ACKed since it was listed, checked after claiming inFlight as the lane marks it ACKed before letting go
+            if(ackedSinceSweep.contains(record.getId())){
+                inFlight.remove(record.getId());
+                continue;
+            }
+            long userId;
+            try {
+                userId = Long.parseLong(String.valueOf(record.getValue().get("userId")));
+            } catch (NumberFormatException e) {
+                // No user to route by, this record can never become an order. Dead letter it so it doesn't hold up the rest
+                deadLetter(record, 1, "no valid userId");
+                inFlight.remove(record.getId());
+                continue;
+            }
+            OrderLane lane = lanes[Math.floorMod(Long.hashCode(userId), lanes.length)];
+            // Blocks while the lane is full, so a slow DB slows down reading instead of filling up memory
+            lane.queue.put(record);
+        }
+    }
+
+    /**
+     * Take over pending orders from consumers that stopped processing them, e.g. a crashed node
+     */
+    @Scheduled(fixedDelayString = "${hmdp.order.reclaim.interval-ms:10000}")
+    public void reclaimPendingOrders() {
+        try {
+            // 1. Find idle entries owned by other consumers  XPENDING stream.orders g1 - + count
+            List<RecordId> ids = new ArrayList<>();
+            Map<RecordId, Long> deliveries = new HashMap<>();
+            Range<String> range = Range.unbounded();
+            while(true){
+                PendingMessages pending = stringRedisTemplate.opsForStream()
+                        .pending(ORDER_STREAM_KEY, ORDER_STREAM_GROUP, range, reclaimBatchSize);
+                for (PendingMessage message : pending) {
+                    if(consumerName.equals(message.getConsumerName())
+                            || message.getElapsedTimeSinceLastDelivery().compareTo(reclaimMinIdle) < 0){
+                        continue;
+                    }
+                    ids.add(message.getId());
+                    deliveries.put(message.getId(), message.getTotalDeliveryCount());
+                }
+                if(pending.size() < reclaimBatchSize){
+                    break;
+                }
+                range = Range.rightUnbounded(Range.Bound.exclusive(pending.get(pending.size() - 1).getIdAsString()));
+            }
+
+            // 2. Claim them, XCLAIM checks the idle time again so two nodes never both win an entry
+            if(!ids.isEmpty()){
+                List<MapRecord<String, Object, Object>> records = claim(ids);
+                reclaimed.add(records.size());
+                log.info("reclaimed {} pending orders", records.size());
+
+                // 3. Entries that went round too often are dead lettered, the rest processed like any other record
+                List<MapRecord<String, Object, Object>> retry = new ArrayList<>(records.size());
+                for (MapRecord<String, Object, Object> record : records) {
+                    long delivered = deliveries.getOrDefault(record.getId(), 0L);
+                    if(delivered > reclaimMaxDeliveries){
+                        deadLetter(record, delivered, "delivered " + delivered + " times");
+                    } else {
+                        retry.add(record);
+                    }
+                }
+                if(lanes != null){
+                    dispatch(retry);
+                } else {
+                    handleRecords(retry);
+                }
+            }
+
+            // 4. Drop consumers that are gone and own nothing
+            stringRedisTemplate.opsForStream().consumers(ORDER_STREAM_KEY, ORDER_STREAM_GROUP).stream()
+                    .filter(consumer -> !consumerName.equals(consumer.consumerName()))
+                    .filter(consumer -> consumer.pendingCount() == 0 && consumer.idleTimeMs() > deadConsumerIdle.toMillis())
+                    .forEach(consumer -> {
+                        stringRedisTemplate.opsForStream().deleteConsumer(ORDER_STREAM_KEY, Consumer.from(ORDER_STREAM_GROUP, consumer.consumerName()));
+                        log.info("removed idle consumer {}", consumer.consumerName());
+                    });
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (Exception e) {
+            log.error("reclaim pending orders fail", e);
+        }
+    }
+
+    // XCLAIM stream.orders g1 consumer min-idle id1 id2 ..., StreamOperations has no claim in this Spring Data version
+    private List<MapRecord<String, Object, Object>> claim(List<RecordId> ids) {
+        RedisSerializer<String> serializer = stringRedisTemplate.getStringSerializer();
+        List<ByteRecord> claimed = stringRedisTemplate.execute((RedisCallback<List<ByteRecord>>) connection ->
+                connection.streamCommands().xClaim(serializer.serialize(ORDER_STREAM_KEY), ORDER_STREAM_GROUP, consumerName,
+                        reclaimMinIdle, ids.toArray(new RecordId[0])));
+        if(claimed == null){
+            return Collections.emptyList();
+        }
+        List<MapRecord<String, Object, Object>> records = new ArrayList<>(claimed.size());
+        for (ByteRecord record : claimed) {
+            records.add(record.<String, Object, Object>deserialize(serializer, serializer, serializer));
+        }
+        return records;
+    }
+
+    private void handleRecord(MapRecord<String, Object, Object> record) {
+        VoucherOrder voucherOrder = BeanUtil.fillBeanWithMap(record.getValue(), new VoucherOrder(), true);
+
+        // No user lock needed, the unique (user_id, voucher_id) key turns a second order into a duplicate key
+        boolean created = proxy.createVoucherOrder(voucherOrder);
+        setOrderStatus(Collections.singletonMap(voucherOrder.getId(), created ? ORDER_STATUS_CREATED : ORDER_STATUS_FAILED));
+        if(created){
+            schedulePaymentTimeout(Collections.singletonList(voucherOrder));
+        }
+
+        // ACK confirm
+        acknowledge(record.getId());
+        drainMeter.mark(1);
+    }
+
+    private void handleVoucherOrderBatch(List<MapRecord<String, Object, Object>> records) {
+        // 1. Convert and dedupe in memory, one order per user and voucher
+        Map<String, VoucherOrder> orders = new LinkedHashMap<>(records.size());
+        Map<Long, String> statuses = new HashMap<>(records.size());
+        for (MapRecord<String, Object, Object> record : records) {
+            VoucherOrder voucherOrder = BeanUtil.fillBeanWithMap(record.getValue(), new VoucherOrder(), true);
+            orders.putIfAbsent(voucherOrder.getUserId() + ":" + voucherOrder.getVoucherId(), voucherOrder);
+            statuses.put(voucherOrder.getId(), ORDER_STATUS_FAILED);
+        }
+
+        // 2. Deduct stock and insert the whole batch in one transaction
+        List<VoucherOrder> created = proxy.createVoucherOrders(new ArrayList<>(orders.values()));
+        created.forEach(order -> statuses.put(order.getId(), ORDER_STATUS_CREATED));
+        setOrderStatus(statuses);
+        schedulePaymentTimeout(created);
+
+        // 3. ACK the whole batch in one call  XACK stream.orders g1 id1 id2 ...
+        RecordId[] ids = records.stream().map(MapRecord::getId).toArray(RecordId[]::new);
+        acknowledge(ids);
+
+        drainMeter.mark(records.size());
+        drainedBatches.increment();
+    }
+
 //    private BlockingQueue<VoucherOrder> orderTasks = new ArrayBlockingQueue<>(1024 * 1024);
 //
 //
@@ -177,65 +695,255 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
 //        }
 //    }
 
-    private void handleVoucherOrder(VoucherOrder voucherOrder) {
-        Long userId = voucherOrder.getUserId();
-
-        // Build lock
-        //SimpleRedisLock lock = new SimpleRedisLock("order:" + userId, stringRedisTemplate);
-        RLock lock = redissonClient.getLock("lock:order:" + userId);
+    // Transactional proxy of this service for the consumer threads, resolved on first use so it is there
+    // no matter which endpoint this node served first, or whether it only drains pending and reclaimed orders
+    @Lazy
+    @Resource
+    private IVoucherOrderService proxy;
 
-        // Get lock
-        boolean isLock = lock.tryLock();
 
-        // check if get lock success
-        if(!isLock){
-            // get lock fail, return error
-            log.error("No duplicate order!");
-            return;
+    @Override
+    public Result seckillVoucher(Long voucherId) {
+        // Orders come in faster than the consumers write them, from the last stream sample
+        long backlog = orderStreamMonitor.getBacklog();
+        boolean degraded = maxBacklog > 0 && backlog > maxBacklog;
+        if(degraded && "reject".equals(backpressureMode)){
+            backpressureRejected.increment();
+            return Result.fail("Too many orders waiting, please retry later!");
         }
 
+        // Limit concurrent requests per voucher, the rest are told to retry instead of queueing on Redis
+        if(!seckillAdmissionGate.tryEnter(voucherId)){
+            return Result.fail("Busy, please retry!");
+        }
+        Result result;
         try {
-            // Get transactional target
-            proxy.createVoucherOrder(voucherOrder);
-        } catch (IllegalStateException e) {
-            throw new RuntimeException(e);
+            result = doSeckillVoucher(voucherId);
+        } finally {
+            seckillAdmissionGate.exit(voucherId);
+        }
+
+        if(degraded && Boolean.TRUE.equals(result.getSuccess())){
+            // Accepted, but the order lands late. The client polls the order status, which carries the wait estimate
+            backpressureQueued.increment();
+        }
+        return result;
+    }
+
+    // Time to work off the backlog at the current drain rate, null if nothing is draining
+    private Long estimateWaitMillis(long backlog) {
+        // this node's rate times the consumers in the group, they all share the stream
+        Long consumers = orderStreamMonitor.getStats().getConsumers();
+        double rate = drainMeter.getRate() * (consumers == null ? 1 : Math.max(consumers, 1));
+        if(rate < 1){
+            return null;
+        }
+        return (long) (backlog / rate * 1000);
+    }
+
+    private Result doSeckillVoucher(Long voucherId) {
+        // Stock leased to this node is sold locally, see SeckillStockLease
+        if(seckillStockLease.isEnabled()){
+            return seckillWithLease(voucherId);
+        }
+
+        // 0. Already sold out, reject without going to Redis
+        if(seckillSoldOutCache.isSoldOut(voucherId)){
+            return Result.fail("Stock Not Enough!");
         }
-        finally {
-            // unlock
-            lock.unlock();
+
+        // Get user id
+        Long userId = Long.valueOf(4);
+        long orderId = nextOrderId(userId);
+
+        // 1. start seckill lua script on the user's home segment, moving on to the next one while a segment is empty
+        int segments = seckillStockSegments.count(voucherId);
+        int home = (int) (userId % segments);
+        int r = 1;
+        for (int i = 0; i < segments && r == 1; i++) {
+            int segment = (home + i) % segments;
+            if(seckillStockSegments.isEmpty(voucherId, segment)){
+                continue;
+            }
+            List<String> keys = Arrays.asList(SeckillStockSegments.stockKey(voucherId, segments, segment),
+                    SeckillStockSegments.orderKey(voucherId, segments, home), ORDER_STREAM_KEY, SECKILL_WINDOW_KEY + voucherId,
+                    ORDER_STATUS_KEY + orderId);
+            Long result = redisScriptRegistry.execute("seckill", Long.class, keys, voucherId.toString(), userId.toString(),
+                    String.valueOf(orderId), String.valueOf(System.currentTimeMillis()), String.valueOf(statusTtl.getSeconds()));
+            r = result.intValue();
+            if(r == 1){
+                seckillStockSegments.markEmpty(voucherId, segment);
+            }
         }
 
 
+        // 2. check if the result is 0
+        if(r != 0){
+            // 3. if not 0 return error
+            if(r == 1){
+                // flag it on every node so later requests stop at the JVM
+                seckillSoldOutCache.markSoldOut(voucherId);
+            }
+            return Result.fail(seckillFailMessage(r));
+        }
+
+        // the order is created asynchronously, poll /voucher-order/status/{orderId} for the result
+        return Result.ok(orderId);
     }
 
-    private IVoucherOrderService proxy;
 
 
-    @Override
-    public Result seckillVoucher(Long voucherId) {
+    private Result seckillWithLease(Long voucherId) {
         // Get user id
         Long userId = Long.valueOf(4);
-        long orderId = redisWorker.nextId("order");
 
-        // 1. start seckill lua script
-        Long result = stringRedisTemplate.execute(SECKILL_SCRIPT, Collections.emptyList(), voucherId.toString(), userId.toString(), String.valueOf(orderId));
+        // 1. take one unit from this node's lease, Redis is only called when the lease runs dry
+        int acquired = seckillStockLease.tryAcquire(voucherId);
+        if(acquired != 0){
+            return Result.fail(seckillFailMessage(acquired));
+        }
 
+        // 2. only the duplicate check goes to Redis
+        long orderId = nextOrderId(userId);
+        Long result;
+        try {
+            result = seckillStockLease.order(voucherId, userId, orderId, statusTtl);
+        } catch (RuntimeException e) {
+            seckillStockLease.release(voucherId);
+            throw e;
+        }
 
-        // 2. check if the result is 0
-        int r = result.intValue();
+        if(result == 6){
+            // another node gave this node's lease back, the local units are gone
+            seckillStockLease.drop(voucherId);
+            return Result.fail("Busy, please retry!");
+        }
         if(result != 0){
-            // 3. if not 0 return error
-            return Result.fail(r == 1 ? "Stock Not Enough!" : "Duplicate Order!");
+            // unit goes back to the local lease
+            seckillStockLease.release(voucherId);
+            return Result.fail("Duplicate Order!");
         }
 
-        // Get transactional target
-        proxy = (IVoucherOrderService) AopContext.currentProxy();
+        return Result.ok(orderId);
+    }
+
+    @Override
+    public Result seckillVouchers(List<Long> voucherIds, boolean allOrNothing) {
+        List<Long> ids = voucherIds == null ? Collections.emptyList()
+                : voucherIds.stream().filter(Objects::nonNull).distinct().collect(Collectors.toList());
+        if(ids.isEmpty()){
+            return Result.fail("No voucher selected!");
+        }
+        if(ids.size() > maxCheckoutSize){
+            return Result.fail("Too many vouchers, at most " + maxCheckoutSize + "!");
+        }
+        long backlog = orderStreamMonitor.getBacklog();
+        if(maxBacklog > 0 && backlog > maxBacklog && "reject".equals(backpressureMode)){
+            backpressureRejected.increment();
+            return Result.fail("Too many orders waiting, please retry later!");
+        }
+
+        // Same admission limit as single seckill, the gate of every voucher in the cart has to let it in
+        List<Long> entered = new ArrayList<>(ids.size());
+        try {
+            for (Long voucherId : ids) {
+                if(!seckillAdmissionGate.tryEnter(voucherId)){
+                    return Result.fail("Busy, please retry!");
+                }
+                entered.add(voucherId);
+            }
+            return doSeckillVouchers(ids, allOrNothing);
+        } finally {
+            entered.forEach(seckillAdmissionGate::exit);
+        }
+    }
+
+    private Result doSeckillVouchers(List<Long> voucherIds, boolean allOrNothing) {
+        // Get user id
+        Long userId = Long.valueOf(4);
+
+        // 1. one order id per voucher, vouchers known to be sold out are not sent to Redis
+        Map<Long, Integer> codes = new LinkedHashMap<>();
+        Map<Long, Long> orderIds = new LinkedHashMap<>();
+        List<String> args = new ArrayList<>();
+        args.add(userId.toString());
+        args.add(String.valueOf(System.currentTimeMillis()));
+        args.add(String.valueOf(statusTtl.getSeconds()));
+        args.add(allOrNothing ? "1" : "0");
+        for (Long voucherId : voucherIds) {
+            if(seckillSoldOutCache.isSoldOut(voucherId)){
+                codes.put(voucherId, 1);
+            }
+        }
+        if(!allOrNothing || codes.isEmpty()){
+            for (Long voucherId : voucherIds) {
+                if(codes.containsKey(voucherId)){
+                    continue;
+                }
+                long orderId = nextOrderId(userId);
+                orderIds.put(voucherId, orderId);
+                args.add(voucherId.toString());
+                args.add(String.valueOf(orderId));
+            }
+        }
 
+        // 2. check and take stock of the whole cart in one script call
+        if(!orderIds.isEmpty()){
+            List<?> results = redisScriptRegistry.execute("seckill_batch", List.class, Collections.emptyList(), args.toArray());
+            int i = 0;
+            for (Long voucherId : orderIds.keySet()) {
+                int r = ((Number) results.get(i++)).intValue();
+                codes.put(voucherId, r);
+                if(r == 1){
+                    seckillSoldOutCache.markSoldOut(voucherId);
+                }
+            }
+        }
 
-        return Result.ok(0);
+        // 3. result per voucher, in the order asked for
+        List<Map<String, Object>> items = new ArrayList<>(voucherIds.size());
+        int ordered = 0;
+        for (Long voucherId : voucherIds) {
+            int r = codes.getOrDefault(voucherId, 5);
+            Map<String, Object> item = new LinkedHashMap<>();
+            item.put("voucherId", voucherId);
+            item.put("success", r == 0);
+            if(r == 0){
+                item.put("orderId", orderIds.get(voucherId));
+                ordered++;
+            } else {
+                item.put("message", r == 5 ? "Not ordered, another voucher failed!" : seckillFailMessage(r));
+            }
+            items.add(item);
+        }
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("ordered", ordered);
+        result.put("items", items);
+        return Result.ok(result);
     }
 
+    // With sharded order tables the id carries the user's shard, so the order can be found by id alone
+    private long nextOrderId(Long userId) {
+        if(orderShardRouter.isSharded()){
+            return redisWorker.nextId("order", orderShardRouter.shardOfUser(userId));
+        }
+        return redisWorker.nextId("order");
+    }
 
+    private static String seckillFailMessage(int r) {
+        switch (r) {
+            case 1:
+                return "Stock Not Enough!";
+            case 2:
+                return "Duplicate Order!";
+            case 3:
+                return "Seckill Not Started!";
+            case 4:
+                return "Seckill Ended!";
+            default:
+                return "Seckill Fail!";
+        }
+    }
 
 //    @Override
 //    public Result seckillVoucher(Long voucherId) {
@@ -284,38 +992,297 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
 
 
     @Transactional
-    public void createVoucherOrder(VoucherOrder voucherOrder){
+    public boolean createVoucherOrder(VoucherOrder voucherOrder){
+        // Order tables are sharded by user
+        return orderShardRouter.route(orderShardRouter.shardOfUser(voucherOrder.getUserId()), () -> doCreateVoucherOrder(voucherOrder));
+    }
+
+    private boolean doCreateVoucherOrder(VoucherOrder voucherOrder){
         // Ensure only user can only buy one voucher
         Long userId =voucherOrder.getUserId();
 
-        // Check order
-        int count = query().eq("user_id", userId)
-                .eq("voucher_id", voucherOrder)
-                .count();
-
-        // User already purchase, throw error
-        if(count > 0){
-            log.error("User already purchased this voucher!");
-            return;
+        // 1. Insert first, the unique (user_id, live_voucher_id) key rejects a second live order of the user
+        try {
+            save(voucherOrder);
+        } catch (DuplicateKeyException e) {
+            // The same order delivered again, e.g. read back from the pending list, was created already
+            if(query().eq("id", voucherOrder.getId()).count() > 0){
+                return true;
+            }
+            log.error("User {} already purchased voucher {}!", userId, voucherOrder.getVoucherId());
+            return false;
         }
 
-        // if enough, update stock
+        // 2. if enough, update stock in the same transaction
         boolean success = seckillVoucherService.update()
                 .setSql("stock = stock -1")
-                .eq("voucher_id", voucherOrder)
+                .eq("voucher_id", voucherOrder.getVoucherId())
                 .gt("stock", 0)
                 .update();
 
         if(!success){
             log.error("Stock not enough!");
+            // take the insert back
+            TransactionAspectSupport.currentTransactionStatus().setRollbackOnly();
+            return false;
+        }
+        return true;
+    }
+
+    @Override
+    @Transactional
+    public List<VoucherOrder> createVoucherOrders(List<VoucherOrder> voucherOrders){
+        // One round per order table shard, all in this transaction
+        Map<Integer, List<VoucherOrder>> ordersByShard = voucherOrders.stream()
+                .collect(Collectors.groupingBy(order -> orderShardRouter.shardOfUser(order.getUserId())));
+        List<VoucherOrder> accepted = new ArrayList<>(voucherOrders.size());
+        ordersByShard.forEach((shard, orders) ->
+                accepted.addAll(orderShardRouter.route(shard, () -> createVoucherOrdersInShard(orders))));
+        return accepted;
+    }
+
+    private List<VoucherOrder> createVoucherOrdersInShard(List<VoucherOrder> voucherOrders){
+        // Group by voucher so every voucher only costs one check and one stock update
+        Map<Long, List<VoucherOrder>> ordersByVoucher = voucherOrders.stream()
+                .collect(Collectors.groupingBy(VoucherOrder::getVoucherId, LinkedHashMap::new, Collectors.toList()));
+
+        List<VoucherOrder> accepted = new ArrayList<>(voucherOrders.size());
+        List<VoucherOrder> done = new ArrayList<>();
+        for (Map.Entry<Long, List<VoucherOrder>> entry : ordersByVoucher.entrySet()) {
+            Long voucherId = entry.getKey();
+            List<VoucherOrder> orders = entry.getValue();
+
+            // 1. Orders created already (delivered again) and users who already hold a live order of this voucher
+            Set<Long> userIds = orders.stream().map(VoucherOrder::getUserId).collect(Collectors.toSet());
+            Set<Long> orderIds = orders.stream().map(VoucherOrder::getId).collect(Collectors.toSet());
+            List<VoucherOrder> existing = query().select("id", "user_id")
+                    .eq("voucher_id", voucherId)
+                    .in("user_id", userIds)
+                    // cancelled orders don't count as a purchase
+                    .and(w -> w.in("id", orderIds).or().ne("status", 4))
+                    .list();
+            Set<Long> created = existing.stream().map(VoucherOrder::getId).collect(Collectors.toSet());
+            Set<Long> purchased = existing.stream().map(VoucherOrder::getUserId).collect(Collectors.toSet());
+
+            List<VoucherOrder> fresh = new ArrayList<>(orders.size());
+            int duplicates = 0;
+            for (VoucherOrder order : orders) {
+                if(created.contains(order.getId())){
+                    // nothing to insert or deduct, but the order succeeded
+                    done.add(order);
+                } else if(purchased.contains(order.getUserId())){
+                    duplicates++;
+                } else {
+                    fresh.add(order);
+                }
+            }
+            if(duplicates > 0){
+                log.error("{} users already purchased voucher {}", duplicates, voucherId);
+            }
+            if(fresh.isEmpty()){
+                continue;
+            }
+
+            // 2. Deduct stock for the whole group at once
+            boolean success = seckillVoucherService.update()
+                    .setSql("stock = stock - " + fresh.size())
+                    .eq("voucher_id", voucherId)
+                    .ge("stock", fresh.size())
+                    .update();
+            if(success){
+                accepted.addAll(fresh);
+                continue;
+            }
+
+            // 3. Not enough for the whole group, take what is left one by one
+            for (VoucherOrder order : fresh) {
+                boolean deducted = seckillVoucherService.update()
+                        .setSql("stock = stock -1")
+                        .eq("voucher_id", voucherId)
+                        .gt("stock", 0)
+                        .update();
+                if(!deducted){
+                    log.error("Stock not enough for voucher {}!", voucherId);
+                    break;
+                }
+                accepted.add(order);
+            }
+        }
+
+        // 4. One multi-row insert for the whole batch
+        if(!accepted.isEmpty()){
+            getBaseMapper().insertBatch(accepted);
+        }
+        accepted.addAll(done);
+        return accepted;
+    }
+
+    // Flip the status written by seckill.lua, the TTL starts over
+    private void setOrderStatus(Map<Long, String> statuses) {
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection conn = (StringRedisConnection) connection;
+            statuses.forEach((orderId, status) -> conn.setEx(ORDER_STATUS_KEY + orderId, statusTtl.getSeconds(), status));
+            return null;
+        });
+    }
+
+    // Unpaid orders are cancelled by OrderTimeoutCanceller once the deadline passed
+    private void schedulePaymentTimeout(List<VoucherOrder> created) {
+        if(created.isEmpty() || !orderTimeoutCanceller.isEnabled()){
             return;
         }
+        long deadline = orderTimeoutCanceller.deadline();
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection conn = (StringRedisConnection) connection;
+            // NX, an order delivered again keeps its first deadline
+            created.forEach(order -> conn.zAdd(ORDER_TIMEOUT_KEY, deadline, OrderTimeoutCanceller.member(order), RedisZSetCommands.ZAddArgs.ifNotExists()));
+            return null;
+        });
+    }
 
+    @Override
+    @Transactional
+    public List<VoucherOrder> cancelUnpaidOrders(List<Long> orderIds) {
+        // The shard of an order is in its id
+        Map<Integer, List<Long>> idsByShard = orderIds.stream().collect(Collectors.groupingBy(orderShardRouter::shardOfOrder));
+        List<VoucherOrder> cancelled = new ArrayList<>(orderIds.size());
+        idsByShard.forEach((shard, ids) ->
+                cancelled.addAll(orderShardRouter.route(shard, () -> cancelUnpaidOrdersInShard(ids))));
+        return cancelled;
+    }
 
-        save(voucherOrder);
+    // Returns the orders that are cancelled afterwards, also ones cancelled before so their Redis stock can be checked
+    private List<VoucherOrder> cancelUnpaidOrdersInShard(List<Long> orderIds) {
+        // 1. Lock the orders that are unpaid or cancelled, paid ones are left alone
+        List<VoucherOrder> orders = query().in("id", orderIds).in("status", 1, 4).last("for update").list();
+        List<VoucherOrder> unpaid = orders.stream().filter(order -> order.getStatus() == 1).collect(Collectors.toList());
+        if(unpaid.isEmpty()){
+            return orders;
+        }
 
+        // 2. Cancel them in one update
+        List<Long> ids = unpaid.stream().map(VoucherOrder::getId).collect(Collectors.toList());
+        update().set("status", 4).in("id", ids).eq("status", 1).update();
+
+        // 3. Put the stock back, one update per voucher
+        unpaid.stream()
+                .collect(Collectors.groupingBy(VoucherOrder::getVoucherId, Collectors.counting()))
+                .forEach((voucherId, count) -> seckillVoucherService.update()
+                        .setSql("stock = stock + " + count)
+                        .eq("voucher_id", voucherId)
+                        .update());
+        return orders;
+    }
 
+    @Override
+    public Result queryDeadLetters(Integer count) {
+        List<MapRecord<String, Object, Object>> records = stringRedisTemplate.opsForStream()
+                .range(ORDER_DLQ_KEY, Range.unbounded(), RedisZSetCommands.Limit.limit().count(count));
+        List<Map<String, Object>> result = new ArrayList<>(records.size());
+        for (MapRecord<String, Object, Object> record : records) {
+            Map<String, Object> entry = new LinkedHashMap<>();
+            entry.put("id", record.getId().getValue());
+            record.getValue().forEach((k, v) -> entry.put(String.valueOf(k), v));
+            result.add(entry);
+        }
+        return Result.ok(result);
     }
 
+    @Override
+    public Result replayDeadLetters(Integer count) {
+        // 1. Oldest dead letters first
+        List<MapRecord<String, Object, Object>> records = stringRedisTemplate.opsForStream()
+                .range(ORDER_DLQ_KEY, Range.unbounded(), RedisZSetCommands.Limit.limit().count(count));
+
+        for (MapRecord<String, Object, Object> record : records) {
+            // 2. Put the original order back on the order stream
+            Map<String, String> values = new LinkedHashMap<>();
+            record.getValue().forEach((k, v) -> {
+                if(!DEAD_LETTER_FIELDS.contains(String.valueOf(k))){
+                    values.put(String.valueOf(k), String.valueOf(v));
+                }
+            });
+            stringRedisTemplate.opsForStream().add(StreamRecords.string(values).withStreamKey(ORDER_STREAM_KEY));
 
+            // 3. Remove it from the dead letter stream
+            stringRedisTemplate.opsForStream().delete(ORDER_DLQ_KEY, record.getId());
+            if(values.containsKey("id")){
+                setOrderStatus(Collections.singletonMap(Long.valueOf(values.get("id")), ORDER_STATUS_QUEUED));
+            }
+        }
+        log.info("replayed {} dead lettered orders", records.size());
+        return Result.ok(records.size());
+    }
+
+    @Override
+    public Result queryOrderById(Long orderId) {
+        // No need to ask every shard, the id says where the order is
+        VoucherOrder order = orderShardRouter.route(orderShardRouter.shardOfOrder(orderId), () -> getById(orderId));
+        if(order == null){
+            return Result.fail("Order not found!");
+        }
+        return Result.ok(order);
+    }
+
+    @Override
+    public Result queryOrderStatus(Long orderId) {
+        String status = stringRedisTemplate.opsForValue().get(ORDER_STATUS_KEY + orderId);
+        if(status == null){
+            return Result.fail("Order not found!");
+        }
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("orderId", orderId);
+        result.put("status", status);
+        if(ORDER_STATUS_QUEUED.equals(status)){
+            // Still in the stream, how long the consumers need for the current backlog
+            long backlog = orderStreamMonitor.getBacklog();
+            result.put("backlog", backlog);
+            result.put("estimatedWaitMs", estimateWaitMillis(backlog));
+        }
+        return Result.ok(result);
+    }
+
+    @Override
+    public Result queryOrderStats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("batchSize", batchSize);
+        stats.put("maxLingerMs", maxLinger.toMillis());
+        stats.put("drainedOrders", drainMeter.getCount());
+        stats.put("drainedBatches", drainedBatches.sum());
+        stats.put("drainRate", drainMeter.getRate());
+        stats.put("soldOutVouchers", seckillSoldOutCache.size());
+        stats.put("soldOutRejected", seckillSoldOutCache.getRejected());
+        stats.put("leasedUnits", seckillStockLease.getLeasedUnits());
+        stats.put("gate", seckillAdmissionGate.getStats());
+        stats.put("consumerName", consumerName);
+        stats.put("reclaimed", reclaimed.sum());
+        stats.put("retrying", failures.size());
+        stats.put("deadLettered", deadLettered.sum());
+        stats.put("programmingErrors", programmingErrors.sum());
+        stats.put("stream", orderStreamMonitor.getStats());
+        stats.put("streamTrimmed", orderStreamMonitor.getTrimmed());
+        stats.put("backlog", orderStreamMonitor.getBacklog());
+        stats.put("cancelledUnpaid", orderTimeoutCanceller.getCancelled());
+        stats.put("backpressureRejected", backpressureRejected.sum());
+        stats.put("backpressureQueued", backpressureQueued.sum());
+        stats.put("orderShards", orderShardRouter.getShards());
+        stats.put("scripts", redisScriptRegistry.getStats());
+        stats.put("scriptReloads", redisScriptRegistry.getReloads());
+        stats.put("laneCount", laneCount);
+        stats.put("laneQueueDepth", laneQueueDepth);
+        stats.put("inFlight", inFlight.size());
+        if(lanes != null){
+            List<Map<String, Object>> laneStats = new ArrayList<>(lanes.length);
+            for (OrderLane lane : lanes) {
+                Map<String, Object> laneStat = new LinkedHashMap<>();
+                laneStat.put("lane", lane.index);
+                laneStat.put("queued", lane.queue.size());
+                laneStat.put("lagMs", lane.getLagMillis());
+                laneStat.put("processed", lane.processed.sum());
+                laneStats.add(laneStat);
+            }
+            stats.put("lanes", laneStats);
+        }
+        return Result.ok(stats);
+    }
 }
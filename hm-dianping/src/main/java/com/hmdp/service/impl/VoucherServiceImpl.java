@@ -7,15 +7,37 @@ import com.hmdp.mapper.VoucherMapper;
 import com.hmdp.entity.SeckillVoucher;
 import com.hmdp.service.ISeckillVoucherService;
 import com.hmdp.service.IVoucherService;
+import com.hmdp.utils.RedisScriptRegistry;
+import com.hmdp.utils.SeckillReconciler;
+import com.hmdp.utils.SeckillSoldOutCache;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.connection.StringRedisConnection;
+import org.springframework.data.redis.core.RedisCallback;
 import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
 
 import javax.annotation.Resource;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Collectors;
 
+import static com.hmdp.utils.RedisConstants.SECKILL_ORDER_KEY;
+import static com.hmdp.utils.RedisConstants.SECKILL_PREHEATED_KEY;
+import static com.hmdp.utils.RedisConstants.SECKILL_SEGMENTS_KEY;
 import static com.hmdp.utils.RedisConstants.SECKILL_STOCK_KEY;
+import static com.hmdp.utils.RedisConstants.SECKILL_WINDOW_KEY;
 
+@Slf4j
 @Service
 public class VoucherServiceImpl extends ServiceImpl<VoucherMapper, Voucher> implements IVoucherService {
 
@@ -25,6 +47,27 @@ public class VoucherServiceImpl extends ServiceImpl<VoucherMapper, Voucher> impl
     @Resource
     private StringRedisTemplate stringRedisTemplate;
 
+    @Resource
+    private RedisScriptRegistry redisScriptRegistry;
+
+    @Resource
+    private SeckillSoldOutCache seckillSoldOutCache;
+
+    @Resource
+    private SeckillReconciler seckillReconciler;
+
+    // Stock sub keys per new seckill voucher, 1 keeps the single seckill:stock:{id} key
+    @Value("${hmdp.seckill.stock-segments:1}")
+    private int stockSegments;
+
+    // Vouchers starting within this time are loaded into Redis
+    @Value("${hmdp.seckill.preheat.lead:5m}")
+    private Duration preheatLead;
+
+    // Keys of a sale are removed this long after it ended
+    @Value("${hmdp.seckill.preheat.cleanup-grace:10m}")
+    private Duration cleanupGrace;
+
     @Override
     public Result queryVoucherOfShop(Long shopId) {
         List<Voucher> vouchers = getBaseMapper().queryVoucherOfShop(shopId);
@@ -45,7 +88,136 @@ public class VoucherServiceImpl extends ServiceImpl<VoucherMapper, Voucher> impl
         seckillVoucherService.save(seckillVoucher);
 
         // save sec kill info to redis
-        stringRedisTemplate.opsForValue().set(SECKILL_STOCK_KEY+ voucher.getId(), voucher.getStock().toString());
+        stringRedisTemplate.opsForValue().multiSet(stockEntries(voucher.getId(), voucher.getStock()));
+        stringRedisTemplate.opsForHash().putAll(SECKILL_WINDOW_KEY + voucher.getId(), windowEntries(seckillVoucher));
+        stringRedisTemplate.opsForSet().add(SECKILL_PREHEATED_KEY, voucher.getId().toString());
+
+        // stock is back, drop sold out flags on every node
+        seckillSoldOutCache.clear(voucher.getId());
+
+    }
 
+    /**
+     * Load stock and sale window of vouchers that start soon, so the first requests find them in Redis
+     */
+    @Scheduled(fixedDelayString = "${hmdp.seckill.preheat.interval-ms:60000}")
+    public void preheatSeckillVouchers() {
+        try {
+            // 1. Vouchers starting soon or running, not loaded yet
+            LocalDateTime now = LocalDateTime.now();
+            Set<String> preheated = stringRedisTemplate.opsForSet().members(SECKILL_PREHEATED_KEY);
+            List<SeckillVoucher> vouchers = seckillVoucherService.query()
+                    .le("begin_time", now.plus(preheatLead))
+                    .gt("end_time", now)
+                    .list()
+                    .stream()
+                    .filter(v -> preheated == null || !preheated.contains(v.getVoucherId().toString()))
+                    .collect(Collectors.toList());
+            if(vouchers.isEmpty()){
+                return;
+            }
+
+            // 2. Stock only for vouchers without any stock or order keys, so a running sale is never reset
+            // or split into segments under the original key
+            for (SeckillVoucher voucher : vouchers) {
+                List<String> args = new ArrayList<>();
+                args.add(voucher.getVoucherId().toString());
+                stockEntries(voucher.getVoucherId(), voucher.getStock()).forEach((key, value) -> {
+                    args.add(key);
+                    args.add(value);
+                });
+                Long loaded = redisScriptRegistry.execute("seckill_preheat", Long.class, Collections.emptyList(), args.toArray());
+                if(loaded == null || loaded == 0){
+                    log.info("seckill voucher {} already has stock in Redis, keeping it", voucher.getVoucherId());
+                }
+            }
+
+            // 3. Sale windows in one pipeline
+            stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                StringRedisConnection conn = (StringRedisConnection) connection;
+                for (SeckillVoucher voucher : vouchers) {
+                    conn.hMSet(SECKILL_WINDOW_KEY + voucher.getVoucherId(), windowEntries(voucher));
+                    conn.sAdd(SECKILL_PREHEATED_KEY, voucher.getVoucherId().toString());
+                }
+                return null;
+            });
+            vouchers.forEach(voucher -> seckillSoldOutCache.clear(voucher.getVoucherId()));
+            log.info("preheated {} seckill vouchers", vouchers.size());
+        } catch (Exception e) {
+            log.error("preheat seckill vouchers fail", e);
+        }
+    }
+
+    /**
+     * Remove Redis keys of sales that are over
+     */
+    @Scheduled(fixedDelayString = "${hmdp.seckill.preheat.interval-ms:60000}")
+    public void cleanupFinishedSeckills() {
+        try {
+            Set<String> preheated = stringRedisTemplate.opsForSet().members(SECKILL_PREHEATED_KEY);
+            if(preheated == null || preheated.isEmpty()){
+                return;
+            }
+            List<Long> ids = preheated.stream().map(Long::valueOf).collect(Collectors.toList());
+            Map<Long, SeckillVoucher> vouchers = seckillVoucherService.listByIds(ids).stream()
+                    .collect(Collectors.toMap(SeckillVoucher::getVoucherId, v -> v));
+
+            LocalDateTime expired = LocalDateTime.now().minus(cleanupGrace);
+            for (Long id : ids) {
+                SeckillVoucher voucher = vouchers.get(id);
+                // deleted vouchers go as well
+                if(voucher != null && voucher.getEndTime().isAfter(expired)){
+                    continue;
+                }
+                List<String> keys = new ArrayList<>();
+                keys.add(SECKILL_STOCK_KEY + id);
+                keys.add(SECKILL_ORDER_KEY + id);
+                keys.add(SECKILL_WINDOW_KEY + id);
+                keys.add(SECKILL_SEGMENTS_KEY + id);
+                String segments = stringRedisTemplate.opsForValue().get(SECKILL_SEGMENTS_KEY + id);
+                for (int i = 0; segments != null && i < Integer.parseInt(segments); i++) {
+                    keys.add(SECKILL_STOCK_KEY + id + ":" + i);
+                    keys.add(SECKILL_ORDER_KEY + id + ":" + i);
+                }
+                stringRedisTemplate.delete(keys);
+                stringRedisTemplate.opsForSet().remove(SECKILL_PREHEATED_KEY, id.toString());
+                log.info("cleaned up finished seckill voucher {}", id);
+            }
+        } catch (Exception e) {
+            log.error("clean up finished seckills fail", e);
+        }
+    }
+
+    private Map<String, String> stockEntries(Long voucherId, int stock) {
+        Map<String, String> entries = new HashMap<>(stockSegments + 1);
+        if(stockSegments <= 1){
+            entries.put(SECKILL_STOCK_KEY + voucherId, String.valueOf(stock));
+            return entries;
+        }
+        // split the stock over segments so a hot voucher is not a single hot key, seckillVoucher picks the segment
+        for (int i = 0; i < stockSegments; i++) {
+            int segmentStock = stock / stockSegments + (i < stock % stockSegments ? 1 : 0);
+            entries.put(SECKILL_STOCK_KEY + voucherId + ":" + i, String.valueOf(segmentStock));
+        }
+        entries.put(SECKILL_SEGMENTS_KEY + voucherId, String.valueOf(stockSegments));
+        return entries;
+    }
+
+    // Sale window in epoch millis, checked by seckill.lua
+    private Map<String, String> windowEntries(SeckillVoucher voucher) {
+        Map<String, String> entries = new HashMap<>(2);
+        entries.put("begin", String.valueOf(voucher.getBeginTime().atZone(ZoneId.systemDefault()).toInstant().toEpochMilli()));
+        entries.put("end", String.valueOf(voucher.getEndTime().atZone(ZoneId.systemDefault()).toInstant().toEpochMilli()));
+        return entries;
+    }
+
+    @Override
+    public Result reconcileSeckillVoucher(Long voucherId, boolean repair, boolean force) {
+        try {
+            return Result.ok(seckillReconciler.reconcile(voucherId, repair, force));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return Result.fail("Reconcile interrupted!");
+        }
     }
 }
@@ -0,0 +1,72 @@
+package com.hmdp.utils;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Bloom filter over long ids, sized from the expected number of ids and the false positive rate.
+ * Adds and lookups are lock free.
+ */
+public class BloomFilter {
+
+    private final AtomicLongArray words;
+
+    private final long bits;
+
+    private final int hashes;
+
+    public BloomFilter(long expectedInsertions, double fpp){
+        long n = Math.max(expectedInsertions, 1);
+        // m = -n ln(p) / ln(2)^2, k = m / n ln(2)
+        long m = (long) Math.ceil(-n * Math.log(fpp) / (Math.log(2) * Math.log(2)));
+        this.words = new AtomicLongArray((int) Math.min((m + 63) / 64, Integer.MAX_VALUE));
+        this.bits = words.length() * 64L;
+        this.hashes = Math.max(1, (int) Math.round((double) m / n * Math.log(2)));
+    }
+
+    public void add(long id){
+        long h1 = mix(id);
+        long h2 = mix(h1) | 1;
+        for (int i = 0; i < hashes; i++) {
+            long bit = ((h1 + i * h2) & Long.MAX_VALUE) % bits;
+            int index = (int) (bit >>> 6);
+            long mask = 1L << bit;
+            long word;
+            do {
+                word = words.get(index);
+                if((word & mask) != 0){
+                    break;
+                }
+            } while (!words.compareAndSet(index, word, word | mask));
+        }
+    }
+
+    public boolean mightContain(long id){
+        long h1 = mix(id);
+        long h2 = mix(h1) | 1;
+        for (int i = 0; i < hashes; i++) {
+            long bit = ((h1 + i * h2) & Long.MAX_VALUE) % bits;
+            if((words.get((int) (bit >>> 6)) & (1L << bit)) == 0){
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public long getBits(){
+        return bits;
+    }
+
+    public int getHashes(){
+        return hashes;
+    }
+
+    // Final step of MurmurHash3 64 bit
+    private static long mix(long x){
+        x ^= x >>> 33;
+        x *= 0xff51afd7ed558ccdL;
+        x ^= x >>> 33;
+        x *= 0xc4ceb9fe1a85ec53L;
+        x ^= x >>> 33;
+        return x;
+    }
+}
@@ -1,59 +1,195 @@
 package com.hmdp.utils;
 
 
+import cn.hutool.cache.CacheUtil;
+import cn.hutool.cache.impl.LRUCache;
 import cn.hutool.core.util.BooleanUtil;
-import cn.hutool.core.util.StrUtil;
-import cn.hutool.json.JSONObject;
-import cn.hutool.json.JSONUtil;
 import com.hmdp.entity.Shop;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.connection.Message;
+import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.data.redis.core.RedisCallback;
 import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
 import org.springframework.stereotype.Component;
 
+import javax.annotation.PostConstruct;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
 import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.function.Function;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
 
 import static com.hmdp.service.impl.ShopServiceImpl.CACHE_REBUILD_EXECUTOR;
 import static com.hmdp.utils.RedisConstants.*;
 
+/**
+ * Redis cache with a small in-process tier in front of it for hot keys.
+ * A node that changes a key (set, setLogicalExpire, delete, evict) publishes it on cache:invalidate and every node
+ * drops its local copy, the local TTL bounds how stale a copy can get when a message is lost.
+ * Filling a key on a miss or rebuilding a logically expired one doesn't publish, no node holds a valid copy then.
+ * Values are shared between all callers of a node through the local tier, treat them as read only and copy before changing one
+ */
 @Slf4j
 @Component
-public class CacheClient {
+public class CacheClient implements MessageListener {
 
     private final StringRedisTemplate stringRedisTemplate;
 
-    public CacheClient(StringRedisTemplate stringRedisTemplate){
+    private final RedisMessageListenerContainer redisMessageListenerContainer;
+
+    private final List<CacheCodec> codecs;
+
+    // hutool = the original JSON format, jackson = JSON read in one pass, smile = binary JSON
+    @Value("${hmdp.cache.codec:hutool}")
+    private String codecName;
+
+    private CacheCodec codec;
+
+    @Value("${hmdp.cache.local.enabled:true}")
+    private boolean localEnabled;
+
+    // Max keys held in memory, least recently used go first
+    @Value("${hmdp.cache.local.capacity:1000}")
+    private int localCapacity;
+
+    @Value("${hmdp.cache.local.ttl:10s}")
+    private Duration localTtl;
+
+    private LRUCache<String, LocalEntry> local;
+
+    // Max time queryWithMutex waits for the cross-node lock before it reads the DB uncached
+    @Value("${hmdp.cache.mutex-wait:3s}")
+    private Duration mutexWait;
+
+    // Loads running in this JVM, concurrent misses for the same key wait on them
+    private final Map<String, CompletableFuture<Object>> inFlight = new ConcurrentHashMap<>();
+
+    // Logically expired keys this JVM is already rebuilding
+    private final Set<String> rebuilding = ConcurrentHashMap.newKeySet();
+
+    private final LongAdder coalesced = new LongAdder();
+
+    private final LongAdder localHits = new LongAdder();
+    private final LongAdder localMisses = new LongAdder();
+    private final LongAdder redisHits = new LongAdder();
+    private final LongAdder redisMisses = new LongAdder();
+    private final LongAdder invalidations = new LongAdder();
+    private final LongAdder invalidationLagMs = new LongAdder();
+    private final LongAccumulator maxInvalidationLagMs = new LongAccumulator(Math::max, 0);
+
+    // Value already deserialized, with the logical expire time for logical expire keys
+    private static class LocalEntry {
+        private final Object value;
+        private final LocalDateTime expireTime;
+
+        private LocalEntry(Object value, LocalDateTime expireTime) {
+            this.value = value;
+            this.expireTime = expireTime;
+        }
+    }
+
+    public CacheClient(StringRedisTemplate stringRedisTemplate, RedisMessageListenerContainer redisMessageListenerContainer, List<CacheCodec> codecs){
         this.stringRedisTemplate = stringRedisTemplate;
+        this.redisMessageListenerContainer = redisMessageListenerContainer;
+        this.codecs = codecs;
     }
 
+    @PostConstruct
+    private void init(){
+        codec = codecs.stream()
+                .filter(c -> c.name().equals(codecName))
+                .findFirst()
+                .orElseThrow(() -> new IllegalStateException("unknown hmdp.cache.codec " + codecName));
+        local = CacheUtil.newLRUCache(localCapacity, localTtl.toMillis());
+        redisMessageListenerContainer.addMessageListener(this, new ChannelTopic(CACHE_INVALIDATE_CHANNEL));
+    }
+
+    // Write a changed value, every node drops its local copy
     public void set(String key, Object value, Long time, TimeUnit unit){
-        stringRedisTemplate.opsForValue().set(key, JSONUtil.toJsonStr(value), time, unit);
+        fill(key, value, time, unit);
+        evict(key);
+    }
+
+    // Remove the key from Redis and from every node
+    public void delete(String key){
+        stringRedisTemplate.delete(key);
+        evict(key);
+    }
+
+    // Drop the local copy on every node, call after writing the key to Redis directly
+    public void evict(String key){
+        local.remove(key);
+        // sent time lets receivers measure the lag
+        stringRedisTemplate.convertAndSend(CACHE_INVALIDATE_CHANNEL, System.currentTimeMillis() + ":" + key);
     }
 
     // Always work won't expire
     public void setLogicalExpire(String key, Object value, Long time, TimeUnit unit){
-        // set logic expire
-        RedisData redisData = new RedisData();
-        redisData.setData(value);
-        redisData.setExpireTime(LocalDateTime.now().plusSeconds(unit.toSeconds(time)));
+        fillLogicalExpire(key, value, time, unit);
+        evict(key);
+    }
 
-        stringRedisTemplate.opsForValue().set(key, JSONUtil.toJsonStr(redisData));
+    // Write after a miss, nobody holds a local copy to drop
+    private void fill(String key, Object value, Long time, TimeUnit unit){
+        setRaw(key, codec.encode(value), unit.toSeconds(time));
+    }
+
+    // Rebuild of an expired key, local copies on other nodes are past their logical expire time as well
+    private void fillLogicalExpire(String key, Object value, Long time, TimeUnit unit){
+        // set logic expire
+        setRaw(key, codec.encodeLogical(value, LocalDateTime.now().plusSeconds(unit.toSeconds(time))), 0);
     }
 
     public <R, ID> R queryWithPassThrough(String keyPrefix, ID id, Class<R> type, Function<ID, R> dbFallback, Long time, TimeUnit unit){
+        return queryWithPassThrough(keyPrefix, id, type, dbFallback, time, unit, null);
+    }
+
+    /**
+     * @param idFilter false for ids that can't exist (e.g. a bloom filter), they are answered without Redis or the DB
+     */
+    public <R, ID> R queryWithPassThrough(String keyPrefix, ID id, Class<R> type, Function<ID, R> dbFallback, Long time, TimeUnit unit, Predicate<ID> idFilter){
+        if(idFilter != null && !idFilter.test(id)){
+            return null;
+        }
         String key = keyPrefix + id;
 
+        // 0. Get cache from local memory
+        LocalEntry entry = getLocal(key);
+        if(entry != null){
+            return type.cast(entry.value);
+        }
+
         // 1. Get cache from redis
-        String json = stringRedisTemplate.opsForValue().get(key);
+        byte[] cached = getRaw(key);
 
         // 2. if cache exist, return cache
-        if(StrUtil.isNotBlank(json)){
-            return JSONUtil.toBean(json, type);
+        R cachedValue = decode(key, cached, type);
+        if(cachedValue != null){
+            redisHits.increment();
+            putLocal(key, new LocalEntry(cachedValue, null));
+            return cachedValue;
         }
+        redisMisses.increment();
 
         // Check if the redis cache is null or empty
-        if(json != null){
+        if(cached != null && cached.length == 0){
             // return error
             return null;
         }
@@ -72,40 +208,143 @@ public class CacheClient {
         }
 
         // 5. if data found, save to redis and return
-        this.set(key, r, time, unit);
+        fill(key, r, time, unit);
 
         return r;
     }
 
 
+    /**
+     * queryWithPassThrough for many ids: one MGET, one DB call for all misses, one pipeline to write them back.
+     * Ids the DB doesn't know are cached as "" like queryWithPassThrough does, only for keys written with set()
+     * @param dbBatchFallback loads the missing ids, returns them by id
+     * @return one entry per id in the same order, null where nothing exists
+     */
+    public <R, ID> List<R> queryBatch(String keyPrefix, List<ID> ids, Class<R> type, Function<List<ID>, Map<ID, R>> dbBatchFallback, Long time, TimeUnit unit){
+        List<R> results = new ArrayList<>(Collections.nCopies(ids.size(), null));
+
+        // 0. Get cache from local memory
+        List<Integer> remote = new ArrayList<>();
+        for (int i = 0; i < ids.size(); i++) {
+            LocalEntry entry = getLocal(keyPrefix + ids.get(i));
+            if(entry != null){
+                results.set(i, type.cast(entry.value));
+            } else {
+                remote.add(i);
+            }
+        }
+        if(remote.isEmpty()){
+            return results;
+        }
+
+        // 1. Get the rest from redis in one round trip
+        List<String> keys = remote.stream().map(i -> keyPrefix + ids.get(i)).collect(Collectors.toList());
+        byte[][] rawKeys = keys.stream().map(key -> key.getBytes(StandardCharsets.UTF_8)).toArray(byte[][]::new);
+        List<byte[]> values = stringRedisTemplate.execute((RedisCallback<List<byte[]>>) connection -> connection.stringCommands().mGet(rawKeys));
+
+        // 2. hits and cached empty values are done, collect the misses
+        Map<ID, List<Integer>> misses = new LinkedHashMap<>();
+        for (int j = 0; j < remote.size(); j++) {
+            int i = remote.get(j);
+            byte[] cached = values == null ? null : values.get(j);
+            R r = decode(keys.get(j), cached, type);
+            if(r != null){
+                redisHits.increment();
+                putLocal(keys.get(j), new LocalEntry(r, null));
+                results.set(i, r);
+            } else if(cached == null || cached.length > 0){
+                redisMisses.increment();
+                misses.computeIfAbsent(ids.get(i), id -> new ArrayList<>()).add(i);
+            }
+        }
+        if(misses.isEmpty()){
+            return results;
+        }
+
+        // 3. one DB query for all misses
+        Map<ID, R> loaded = dbBatchFallback.apply(new ArrayList<>(misses.keySet()));
+
+        // 4. write back in one pipeline, ids the DB doesn't know as empty values
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            misses.forEach((id, positions) -> {
+                R r = loaded == null ? null : loaded.get(id);
+                byte[] rawKey = (keyPrefix + id).getBytes(StandardCharsets.UTF_8);
+                if(r == null){
+                    connection.stringCommands().setEx(rawKey, TimeUnit.MINUTES.toSeconds(CACHE_NULL_TTL), new byte[0]);
+                } else {
+                    connection.stringCommands().setEx(rawKey, unit.toSeconds(time), codec.encode(r));
+                }
+                positions.forEach(i -> results.set(i, r));
+            });
+            return null;
+        });
+        return results;
+    }
+
     public <R, ID> R queryWithLogicalExpire(String keyPrefix, ID id, Class<R> type, Function<ID, R> dbFallback, Long time, TimeUnit unit){
+        return queryWithLogicalExpire(keyPrefix, id, type, dbFallback, time, unit, null);
+    }
+
+    /**
+     * @param idFilter false for ids that can't exist (e.g. a bloom filter), they are answered without Redis or the DB
+     */
+    public <R, ID> R queryWithLogicalExpire(String keyPrefix, ID id, Class<R> type, Function<ID, R> dbFallback, Long time, TimeUnit unit, Predicate<ID> idFilter){
+        if(idFilter != null && !idFilter.test(id)){
+            return null;
+        }
         String key = keyPrefix + id;
 
+        // 0. Get cache from local memory, a logically expired copy goes to redis so the rebuild still happens
+        LocalEntry entry = getLocal(key);
+        if(entry != null && entry.expireTime != null && entry.expireTime.isAfter(LocalDateTime.now())){
+            return type.cast(entry.value);
+        }
+
         // 1. Get cache from redis
-        String json = stringRedisTemplate.opsForValue().get(key);
+        byte[] cached = getRaw(key);
 
         // 2. if cache not exist, return null
-        if(StrUtil.isBlank(json)){
+        if(cached == null || cached.length == 0){
+            redisMisses.increment();
             return null;
         }
+        redisHits.increment();
 
         // if cache exist
-        // deserialize the json
-        RedisData redisData = JSONUtil.toBean(json, RedisData.class);
-        JSONObject data = (JSONObject) redisData.getData();
-        R r = JSONUtil.toBean(data,type);
+        // deserialize envelope and value
+        RedisData redisData = decodeLogical(key, cached, type);
+        if(redisData == null){
+            // written with another codec, write it again with this one
+            R r = dbFallback.apply(id);
+            if(r != null){
+                fillLogicalExpire(key, r, time, unit);
+            }
+            return r;
+        }
+        R r = type.cast(redisData.getData());
         LocalDateTime expireTime = redisData.getExpireTime();
 
         // check if expire
         if(expireTime.isAfter(LocalDateTime.now())){
             // not expire
+            putLocal(key, new LocalEntry(r, expireTime));
             return r;
         }
 
         // if expire need to rebuild
-        // get mutex lock
+        // one thread per JVM asks for the mutex lock, the others return the old value right away
+        if(!rebuilding.add(key)){
+            coalesced.increment();
+            return r;
+        }
         String lockKey = LOCK_SHOP_KEY + id;
-        boolean isLock = tryLock(lockKey);
+        boolean isLock;
+        try {
+            isLock = tryLock(lockKey);
+        } catch (RuntimeException e) {
+            rebuilding.remove(key);
+            throw e;
+        }
 
         // check if the lock is lock
         if(isLock){
@@ -114,7 +353,7 @@ public class CacheClient {
                 try {
                     // cache rebuild
                     R r1 = dbFallback.apply(id);
-                    this.setLogicalExpire(key,r1, time, unit);
+                    fillLogicalExpire(key, r1, time, unit);
 
                 } catch (Exception e) {
                     throw new RuntimeException(e);
@@ -122,9 +361,13 @@ public class CacheClient {
                 finally {
                     // release lock
                     unlock(lockKey);
+                    rebuilding.remove(key);
                 }
             });
 
+        } else {
+            // another node is rebuilding
+            rebuilding.remove(key);
         }
 
         // return expire shop info
@@ -132,6 +375,142 @@ public class CacheClient {
     }
 
 
+    /**
+     * Cache miss rebuilt under the mutex lock. Concurrent misses for a key in this JVM share one load:
+     * the first thread takes the Redis lock and loads, the others wait for its result instead of polling Redis
+     */
+    public <R, ID> R queryWithMutex(String keyPrefix, ID id, Class<R> type, Function<ID, R> dbFallback, Long time, TimeUnit unit){
+        String key = keyPrefix + id;
+
+        // 1. Get cache from local memory or redis
+        LocalEntry entry = getLocal(key);
+        if(entry != null){
+            return type.cast(entry.value);
+        }
+        byte[] cached = getRaw(key);
+        R cachedValue = decode(key, cached, type);
+        if(cachedValue != null){
+            redisHits.increment();
+            putLocal(key, new LocalEntry(cachedValue, null));
+            return cachedValue;
+        }
+        // Check if the redis cache is null or empty
+        if(cached != null && cached.length == 0){
+            redisHits.increment();
+            return null;
+        }
+        redisMisses.increment();
+
+        // 2. join a load already running in this JVM
+        CompletableFuture<Object> load = new CompletableFuture<>();
+        CompletableFuture<Object> running = inFlight.putIfAbsent(key, load);
+        if(running != null){
+            coalesced.increment();
+            try {
+                return type.cast(running.get(mutexWait.toMillis() + LOCK_SHOP_TTL * 1000, TimeUnit.MILLISECONDS));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException(e);
+            } catch (ExecutionException e) {
+                throw new RuntimeException(e.getCause());
+            } catch (TimeoutException e) {
+                throw new RuntimeException("cache rebuild of " + key + " timed out", e);
+            }
+        }
+
+        // 3. leader, load under the cross-node lock and hand the result to the waiters
+        try {
+            R r = loadWithLock(key, id, type, dbFallback, time, unit);
+            load.complete(r);
+            return r;
+        } catch (RuntimeException e) {
+            load.completeExceptionally(e);
+            throw e;
+        } finally {
+            inFlight.remove(key, load);
+        }
+    }
+
+    private <R, ID> R loadWithLock(String key, ID id, Class<R> type, Function<ID, R> dbFallback, Long time, TimeUnit unit){
+        String lockKey = LOCK_SHOP_KEY + id;
+        long deadline = System.currentTimeMillis() + mutexWait.toMillis();
+        while (!tryLock(lockKey)) {
+            // another node is loading, its result shows up in redis
+            if(System.currentTimeMillis() > deadline){
+                // lock holder is stuck, answer from the DB without caching
+                return dbFallback.apply(id);
+            }
+            try {
+                Thread.sleep(50);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException(e);
+            }
+            byte[] cached = getRaw(key);
+            R r = decode(key, cached, type);
+            if(r != null || (cached != null && cached.length == 0)){
+                return r;
+            }
+        }
+        try {
+            // loaded by another node between the miss and the lock
+            byte[] cached = getRaw(key);
+            R cachedValue = decode(key, cached, type);
+            if(cachedValue != null || (cached != null && cached.length == 0)){
+                return cachedValue;
+            }
+            R r = dbFallback.apply(id);
+            if(r == null){
+                // add null value to cache to prevent cache penetration
+                stringRedisTemplate.opsForValue().set(key, "", CACHE_NULL_TTL, TimeUnit.MINUTES);
+                return null;
+            }
+            fill(key, r, time, unit);
+            return r;
+        } finally {
+            unlock(lockKey);
+        }
+    }
+
+    private byte[] getRaw(String key){
+        return stringRedisTemplate.execute((RedisCallback<byte[]>) connection ->
+                connection.stringCommands().get(key.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    // seconds <= 0 keeps the key forever
+    private void setRaw(String key, byte[] value, long seconds){
+        stringRedisTemplate.execute((RedisCallback<Object>) connection -> {
+            byte[] rawKey = key.getBytes(StandardCharsets.UTF_8);
+            if(seconds > 0){
+                return connection.stringCommands().setEx(rawKey, seconds, value);
+            }
+            return connection.stringCommands().set(rawKey, value);
+        });
+    }
+
+    // null for a missing key, an empty value, or a value this codec can't read
+    private <R> R decode(String key, byte[] cached, Class<R> type){
+        if(cached == null || cached.length == 0){
+            return null;
+        }
+        try {
+            return codec.decode(cached, type);
+        } catch (RuntimeException e) {
+            log.warn("cache value of {} is not {}, loading it again", key, codec.name());
+            return null;
+        }
+    }
+
+    private <R> RedisData decodeLogical(String key, byte[] cached, Class<R> type){
+        try {
+            RedisData redisData = codec.decodeLogical(cached, type);
+            return redisData.getExpireTime() == null ? null : redisData;
+        } catch (RuntimeException e) {
+            log.warn("cache value of {} is not {}, loading it again", key, codec.name());
+            return null;
+        }
+    }
+
     private boolean tryLock(String key){
         Boolean flag = stringRedisTemplate.opsForValue().setIfAbsent(key, "1", 10, TimeUnit.SECONDS );
         return BooleanUtil.isTrue(flag);
@@ -141,6 +520,67 @@ public class CacheClient {
         stringRedisTemplate.delete(key);
     }
 
+    private LocalEntry getLocal(String key){
+        if(!localEnabled){
+            return null;
+        }
+        // no access time refresh, a hot key still expires after the TTL if an invalidation got lost
+        LocalEntry entry = local.get(key, false);
+        if(entry == null){
+            localMisses.increment();
+        } else {
+            localHits.increment();
+        }
+        return entry;
+    }
+
+    private void putLocal(String key, LocalEntry entry){
+        if(localEnabled){
+            local.put(key, entry);
+        }
+    }
+
+    @Override
+    public void onMessage(Message message, byte[] pattern) {
+        String body = new String(message.getBody(), StandardCharsets.UTF_8);
+        int split = body.indexOf(':');
+        long sentAt = Long.parseLong(body.substring(0, split));
+        local.remove(body.substring(split + 1));
+
+        long lag = Math.max(System.currentTimeMillis() - sentAt, 0);
+        invalidations.increment();
+        invalidationLagMs.add(lag);
+        maxInvalidationLagMs.accumulate(lag);
+    }
+
+    /**
+     * Hit ratio per tier and invalidation lag
+     */
+    public Map<String, Object> getStats(){
+        Map<String, Object> stats = new LinkedHashMap<>();
+        long hits = localHits.sum();
+        long misses = localMisses.sum();
+        long remoteHits = redisHits.sum();
+        long remoteMisses = redisMisses.sum();
+        long received = invalidations.sum();
+        stats.put("codec", codec.name());
+        stats.put("localEnabled", localEnabled);
+        stats.put("localSize", local.size());
+        stats.put("localCapacity", localCapacity);
+        stats.put("localHits", hits);
+        stats.put("localMisses", misses);
+        stats.put("localHitRatio", hits + misses == 0 ? 0 : (double) hits / (hits + misses));
+        stats.put("redisHits", remoteHits);
+        stats.put("redisMisses", remoteMisses);
+        stats.put("redisHitRatio", remoteHits + remoteMisses == 0 ? 0 : (double) remoteHits / (remoteHits + remoteMisses));
+        stats.put("invalidations", received);
+        stats.put("avgInvalidationLagMs", received == 0 ? 0 : invalidationLagMs.sum() / received);
+        stats.put("maxInvalidationLagMs", maxInvalidationLagMs.get());
+        stats.put("inFlightLoads", inFlight.size() + rebuilding.size());
+        stats.put("coalesced", coalesced.sum());
+        return stats;
+    }
+
 
 
 
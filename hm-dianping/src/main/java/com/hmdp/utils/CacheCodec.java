@@ -0,0 +1,22 @@
+package com.hmdp.utils;
+
+import java.time.LocalDateTime;
+
+/**
+ * Turns cache values into the bytes stored in Redis and back, picked with hmdp.cache.codec.
+ * Values written by one codec can't be read by another, CacheClient treats them as a miss and writes them again
+ */
+public interface CacheCodec {
+
+    String name();
+
+    byte[] encode(Object value);
+
+    <T> T decode(byte[] bytes, Class<T> type);
+
+    // Value wrapped with its logical expire time, see CacheClient.setLogicalExpire
+    byte[] encodeLogical(Object value, LocalDateTime expireTime);
+
+    // data of the returned RedisData is already of the given type
+    <T> RedisData decodeLogical(byte[] bytes, Class<T> type);
+}
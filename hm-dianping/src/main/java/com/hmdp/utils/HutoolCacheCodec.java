@@ -0,0 +1,47 @@
+package com.hmdp.utils;
+
+import cn.hutool.json.JSONObject;
+import cn.hutool.json.JSONUtil;
+import org.springframework.stereotype.Component;
+
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+
+/**
+ * Hutool JSON, the format the cache has always used. Logical expire values are parsed twice,
+ * once into RedisData and once more from its JSONObject into the value type
+ */
+@Component
+public class HutoolCacheCodec implements CacheCodec {
+
+    @Override
+    public String name() {
+        return "hutool";
+    }
+
+    @Override
+    public byte[] encode(Object value) {
+        return JSONUtil.toJsonStr(value).getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public <T> T decode(byte[] bytes, Class<T> type) {
+        return JSONUtil.toBean(new String(bytes, StandardCharsets.UTF_8), type);
+    }
+
+    @Override
+    public byte[] encodeLogical(Object value, LocalDateTime expireTime) {
+        RedisData redisData = new RedisData();
+        redisData.setData(value);
+        redisData.setExpireTime(expireTime);
+        return encode(redisData);
+    }
+
+    @Override
+    public <T> RedisData decodeLogical(byte[] bytes, Class<T> type) {
+        RedisData redisData = decode(bytes, RedisData.class);
+        JSONObject data = (JSONObject) redisData.getData();
+        redisData.setData(JSONUtil.toBean(data, type));
+        return redisData;
+    }
+}
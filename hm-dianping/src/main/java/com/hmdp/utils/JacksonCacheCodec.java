@@ -0,0 +1,83 @@
+package com.hmdp.utils;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.JavaType;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.datatype.jsr310.JavaTimeModule;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.time.LocalDateTime;
+
+/**
+ * Jackson JSON. Logical expire values are read in one pass, the envelope is bound together with the value type
+ */
+@Component
+public class JacksonCacheCodec implements CacheCodec {
+
+    private final ObjectMapper mapper;
+
+    public JacksonCacheCodec(){
+        this(new ObjectMapper());
+    }
+
+    protected JacksonCacheCodec(ObjectMapper mapper){
+        this.mapper = mapper
+                .registerModule(new JavaTimeModule())
+                .setSerializationInclusion(JsonInclude.Include.NON_NULL)
+                .configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
+    }
+
+    // Same fields as RedisData, with the value type known to Jackson
+    public static class Envelope<T> {
+        public LocalDateTime expireTime;
+        public T data;
+    }
+
+    @Override
+    public String name() {
+        return "jackson";
+    }
+
+    @Override
+    public byte[] encode(Object value) {
+        try {
+            return mapper.writeValueAsBytes(value);
+        } catch (IOException e) {
+            throw new IllegalArgumentException("encode " + value.getClass().getSimpleName() + " fail", e);
+        }
+    }
+
+    @Override
+    public <T> T decode(byte[] bytes, Class<T> type) {
+        try {
+            return mapper.readValue(bytes, type);
+        } catch (IOException e) {
+            throw new IllegalArgumentException("decode " + type.getSimpleName() + " fail", e);
+        }
+    }
+
+    @Override
+    public byte[] encodeLogical(Object value, LocalDateTime expireTime) {
+        Envelope<Object> envelope = new Envelope<>();
+        envelope.expireTime = expireTime;
+        envelope.data = value;
+        return encode(envelope);
+    }
+
+    @Override
+    public <T> RedisData decodeLogical(byte[] bytes, Class<T> type) {
+        JavaType envelopeType = mapper.getTypeFactory().constructParametricType(Envelope.class, type);
+        Envelope<T> envelope;
+        try {
+            envelope = mapper.readValue(bytes, envelopeType);
+        } catch (IOException e) {
+            throw new IllegalArgumentException("decode " + type.getSimpleName() + " fail", e);
+        }
+        RedisData redisData = new RedisData();
+        redisData.setExpireTime(envelope.expireTime);
+        redisData.setData(envelope.data);
+        return redisData;
+    }
+}
@@ -0,0 +1,34 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.lang.UUID;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+
+/**
+ * Stable name of this app instance, <application>-<host>-<port>, the same across restarts
+ */
+@Component
+public class NodeIdentity {
+
+    private final String name;
+
+    public NodeIdentity(@Value("${spring.application.name:hmdp}") String applicationName,
+                        @Value("${server.port:8080}") int serverPort){
+        this.name = applicationName + "-" + hostName() + "-" + serverPort;
+    }
+
+    public String getName(){
+        return name;
+    }
+
+    private static String hostName() {
+        try {
+            return InetAddress.getLocalHost().getHostName();
+        } catch (UnknownHostException e) {
+            return UUID.randomUUID().toString(true);
+        }
+    }
+}
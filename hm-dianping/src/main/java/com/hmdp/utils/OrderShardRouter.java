@@ -0,0 +1,76 @@
+package com.hmdp.utils;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.util.function.Supplier;
+
+/**
+ * Routes tb_voucher_order to tb_voucher_order_{shard}, the shard is picked by user id.
+ * Order ids carry their shard in the low bits, see {@link RedisWorker#nextId(String, int)}
+ */
+@Component
+public class OrderShardRouter {
+
+    public static final String ORDER_TABLE = "tb_voucher_order";
+
+    private static final ThreadLocal<Integer> tl = new ThreadLocal<>();
+
+    // Physical order tables, 1 keeps the single tb_voucher_order table
+    @Value("${hmdp.order.shards:1}")
+    private int shards;
+
+    @PostConstruct
+    private void init(){
+        if(shards < 1 || shards > RedisWorker.GENE_MASK + 1){
+            throw new IllegalStateException("hmdp.order.shards must be between 1 and " + (RedisWorker.GENE_MASK + 1));
+        }
+    }
+
+    public boolean isSharded(){
+        return shards > 1;
+    }
+
+    public int getShards(){
+        return shards;
+    }
+
+    public int shardOfUser(Long userId){
+        return (int) Math.floorMod(userId, (long) shards);
+    }
+
+    public int shardOfOrder(Long orderId){
+        return RedisWorker.geneOf(orderId) % shards;
+    }
+
+    /**
+     * Run the statements of action against the given shard
+     */
+    public <T> T route(int shard, Supplier<T> action){
+        Integer previous = tl.get();
+        tl.set(shard);
+        try {
+            return action.get();
+        } finally {
+            if(previous == null){
+                tl.remove();
+            } else {
+                tl.set(previous);
+            }
+        }
+    }
+
+    // Used by the dynamic table name interceptor, see MybatisConfig
+    public String tableName(String tableName){
+        if(!isSharded()){
+            return tableName;
+        }
+        Integer shard = tl.get();
+        if(shard == null){
+            // never fall back to the logical table, rows would end up in the wrong place
+            throw new IllegalStateException("No order shard selected for " + tableName);
+        }
+        return tableName + "_" + shard;
+    }
+}
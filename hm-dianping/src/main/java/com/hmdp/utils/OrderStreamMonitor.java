@@ -0,0 +1,176 @@
+package com.hmdp.utils;
+
+import com.hmdp.dto.OrderStreamStats;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.domain.Range;
+import org.springframework.data.redis.connection.RedisZSetCommands;
+import org.springframework.data.redis.connection.stream.PendingMessagesSummary;
+import org.springframework.data.redis.connection.stream.RecordId;
+import org.springframework.data.redis.connection.stream.StreamInfo;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.concurrent.atomic.LongAdder;
+
+import static com.hmdp.utils.RedisConstants.ORDER_STREAM_GROUP;
+import static com.hmdp.utils.RedisConstants.ORDER_STREAM_KEY;
+
+/**
+ * Samples backlog numbers of the order stream and trims entries every group has ACKed
+ */
+@Slf4j
+@Component
+public class OrderStreamMonitor {
+
+    // Max entries counted by XRANGE when the server doesn't report the group lag (Redis < 7)
+    private static final int LAG_SCAN_LIMIT = 10000;
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    // Hard cap on the stream length, 0 = off. Can drop entries that are not ACKed yet
+    @Value("${hmdp.order.stream.max-len:0}")
+    private long maxLen;
+
+    // Log a warning once the backlog crosses these
+    @Value("${hmdp.order.stream.alert-pending:10000}")
+    private long alertPending;
+
+    @Value("${hmdp.order.stream.alert-age:60s}")
+    private Duration alertAge;
+
+    @Value("${hmdp.order.stream.sample-interval-ms:5000}")
+    private long sampleIntervalMs;
+
+    private volatile OrderStreamStats stats = new OrderStreamStats();
+
+    private final LongAdder trimmed = new LongAdder();
+
+    public OrderStreamStats getStats(){
+        return stats;
+    }
+
+    public long getTrimmed(){
+        return trimmed.sum();
+    }
+
+    /**
+     * Orders queued in the stream and not written yet, pending plus lag of the last sample
+     * @return -1 if there is no recent sample
+     */
+    public long getBacklog(){
+        OrderStreamStats current = stats;
+        // a stale sample says nothing about now, callers fall back to normal mode
+        if(current.getSampledAt() == null || System.currentTimeMillis() - current.getSampledAt() > 3 * sampleIntervalMs){
+            return -1;
+        }
+        return current.getPending() + (current.getLag() == null ? 0 : current.getLag());
+    }
+
+    @Scheduled(fixedDelayString = "${hmdp.order.stream.sample-interval-ms:5000}")
+    public void sample(){
+        try {
+            OrderStreamStats sample = new OrderStreamStats();
+            long now = System.currentTimeMillis();
+
+            // 1. Stream length  XLEN stream.orders
+            sample.setLength(stringRedisTemplate.opsForStream().size(ORDER_STREAM_KEY));
+
+            // 2. Pending count and oldest pending entry  XPENDING stream.orders g1
+            PendingMessagesSummary pending = stringRedisTemplate.opsForStream().pending(ORDER_STREAM_KEY, ORDER_STREAM_GROUP);
+            sample.setPending(pending.getTotalPendingMessages());
+            sample.setOldestPendingAgeMs(pending.getTotalPendingMessages() > 0
+                    ? now - RecordId.of(pending.minMessageId()).getTimestamp() : 0L);
+
+            // 3. Entries not delivered yet  XINFO GROUPS stream.orders
+            StreamInfo.XInfoGroup group = stringRedisTemplate.opsForStream().groups(ORDER_STREAM_KEY).stream()
+                    .filter(g -> ORDER_STREAM_GROUP.equals(g.groupName()))
+                    .findFirst()
+                    .orElse(null);
+            sample.setLag(group == null ? null : lag(group));
+            sample.setConsumers(group == null ? null : group.consumerCount());
+            sample.setSampledAt(now);
+            stats = sample;
+
+            if(sample.getPending() > alertPending
+                    || (sample.getOldestPendingAgeMs() != null && sample.getOldestPendingAgeMs() > alertAge.toMillis())){
+                log.warn("order stream backlog: {}", sample);
+            }
+        } catch (Exception e) {
+            log.error("sample order stream fail", e);
+        }
+    }
+
+    /**
+     * Trim entries older than everything any group still needs: the oldest pending entry and the last delivered one
+     */
+    @Scheduled(fixedDelayString = "${hmdp.order.stream.trim-interval-ms:60000}")
+    public void trim(){
+        try {
+            // 1. Lowest id still needed over all groups
+            RecordId safeId = null;
+            StreamInfo.XInfoGroups groups = stringRedisTemplate.opsForStream().groups(ORDER_STREAM_KEY);
+            for (int i = 0; i < groups.size(); i++) {
+                StreamInfo.XInfoGroup group = groups.get(i);
+                RecordId needed = RecordId.of(group.lastDeliveredId());
+                PendingMessagesSummary pending = stringRedisTemplate.opsForStream().pending(ORDER_STREAM_KEY, group.groupName());
+                if(pending.getTotalPendingMessages() > 0){
+                    needed = min(needed, RecordId.of(pending.minMessageId()));
+                }
+                safeId = safeId == null ? needed : min(safeId, needed);
+            }
+            if(safeId == null){
+                return;
+            }
+
+            // 2. XTRIM stream.orders MINID ~ id, "~" lets Redis trim whole nodes only which is much cheaper
+            String minId = safeId.getValue();
+            Long removed = stringRedisTemplate.execute((RedisCallback<Long>) connection -> (Long) connection.execute("XTRIM",
+                    bytes(ORDER_STREAM_KEY), bytes("MINID"), bytes("~"), bytes(minId)));
+
+            // 3. Hard cap, only for when consumers are down for long
+            if(maxLen > 0){
+                Long capped = stringRedisTemplate.opsForStream().trim(ORDER_STREAM_KEY, maxLen, true);
+                if(capped != null && capped > 0){
+                    log.warn("order stream over max-len {}, dropped {} entries", maxLen, capped);
+                    removed = (removed == null ? 0 : removed) + capped;
+                }
+            }
+            if(removed != null && removed > 0){
+                trimmed.add(removed);
+                log.debug("trimmed {} entries from {} up to {}", removed, ORDER_STREAM_KEY, minId);
+            }
+        } catch (Exception e) {
+            log.error("trim order stream fail", e);
+        }
+    }
+
+    private Long lag(StreamInfo.XInfoGroup group){
+        // Redis 7 reports it
+        Object lag = group.getRaw().get("lag");
+        if(lag instanceof Number){
+            return ((Number) lag).longValue();
+        }
+        // Older servers: count the entries after the last delivered one
+        return (long) stringRedisTemplate.opsForStream().range(ORDER_STREAM_KEY,
+                Range.rightUnbounded(Range.Bound.exclusive(group.lastDeliveredId())),
+                RedisZSetCommands.Limit.limit().count(LAG_SCAN_LIMIT)).size();
+    }
+
+    private static RecordId min(RecordId a, RecordId b){
+        if(a.getTimestamp() != b.getTimestamp()){
+            return a.getTimestamp() < b.getTimestamp() ? a : b;
+        }
+        return a.getSequence() <= b.getSequence() ? a : b;
+    }
+
+    private static byte[] bytes(String value){
+        return value.getBytes(StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,142 @@
+package com.hmdp.utils;
+
+import com.hmdp.entity.VoucherOrder;
+import com.hmdp.service.IVoucherOrderService;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Lazy;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Resource;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Collectors;
+
+import static com.hmdp.utils.RedisConstants.ORDER_TIMEOUT_KEY;
+
+/**
+ * Cancels unpaid orders once their payment deadline passed and gives their stock back.
+ * Deadlines are kept in the order:timeout ZSET, scored by deadline millis
+ */
+@Slf4j
+@Component
+public class OrderTimeoutCanceller {
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private RedisScriptRegistry redisScriptRegistry;
+
+    // Lazy, the order service needs this bean to schedule deadlines
+    @Lazy
+    @Resource
+    private IVoucherOrderService voucherOrderService;
+
+    @Resource
+    private SeckillSoldOutCache seckillSoldOutCache;
+
+    @Value("${hmdp.order.timeout.enabled:true}")
+    private boolean enabled;
+
+    // Unpaid orders are cancelled this long after they were created
+    @Value("${hmdp.order.timeout.unpaid:15m}")
+    private Duration unpaidTimeout;
+
+    // Orders claimed per round
+    @Value("${hmdp.order.timeout.batch-size:100}")
+    private int batchSize;
+
+    // A claimed order is retried after this long if the node claiming it never finished
+    @Value("${hmdp.order.timeout.retry-after:1m}")
+    private Duration retryAfter;
+
+    @Value("${hmdp.order.status-ttl:30m}")
+    private Duration statusTtl;
+
+    // How long Redis remembers that the stock of a cancelled order went back
+    @Value("${hmdp.order.timeout.cancelled-ttl:7d}")
+    private Duration cancelledTtl;
+
+    private final LongAdder cancelled = new LongAdder();
+
+    public boolean isEnabled(){
+        return enabled;
+    }
+
+    // ZSET member of an order, carries what is needed to give the stock back
+    public static String member(VoucherOrder voucherOrder){
+        return voucherOrder.getId() + ":" + voucherOrder.getVoucherId() + ":" + voucherOrder.getUserId();
+    }
+
+    // Payment deadline of an order created now
+    public long deadline(){
+        return System.currentTimeMillis() + unpaidTimeout.toMillis();
+    }
+
+    public long getCancelled(){
+        return cancelled.sum();
+    }
+
+    @Scheduled(fixedDelayString = "${hmdp.order.timeout.interval-ms:1000}")
+    public void cancelExpiredOrders(){
+        if(!enabled){
+            return;
+        }
+        try {
+            while(true){
+                // 1. Claim a batch of due orders, one node per order
+                List<String> members = redisScriptRegistry.execute("order_timeout_claim", List.class, Collections.emptyList(),
+                        String.valueOf(System.currentTimeMillis()), String.valueOf(batchSize), String.valueOf(retryAfter.toMillis()));
+                if(members == null || members.isEmpty()){
+                    return;
+                }
+                Map<Long, String> byOrderId = new LinkedHashMap<>(members.size());
+                for (String member : members) {
+                    byOrderId.put(Long.valueOf(member.substring(0, member.indexOf(':'))), member);
+                }
+
+                // 2. Cancel the ones still unpaid and put their DB stock back, in one transaction.
+                // Also returns orders cancelled by an earlier round that died before step 3
+                List<VoucherOrder> cancelledOrders = voucherOrderService.cancelUnpaidOrders(new ArrayList<>(byOrderId.keySet()));
+                Set<Long> cancelledIds = cancelledOrders.stream().map(VoucherOrder::getId).collect(Collectors.toSet());
+
+                // 3. Redis stock, order set and timeout entry in one script, the stock goes back once per order
+                if(!cancelledOrders.isEmpty()){
+                    List<String> args = new ArrayList<>(cancelledOrders.size() + 2);
+                    args.add(String.valueOf(statusTtl.getSeconds()));
+                    args.add(String.valueOf(cancelledTtl.getSeconds()));
+                    cancelledIds.forEach(id -> args.add(byOrderId.get(id)));
+                    Long restored = redisScriptRegistry.execute("order_cancel", Long.class, Collections.emptyList(), args.toArray());
+                    cancelledOrders.stream().map(VoucherOrder::getVoucherId).distinct().forEach(seckillSoldOutCache::clear);
+                    cancelled.add(restored);
+                    log.info("cancelled {} unpaid orders", restored);
+                }
+
+                // 4. Paid or gone, just drop the deadline
+                Object[] done = byOrderId.entrySet().stream()
+                        .filter(entry -> !cancelledIds.contains(entry.getKey()))
+                        .map(Map.Entry::getValue)
+                        .toArray();
+                if(done.length > 0){
+                    stringRedisTemplate.opsForZSet().remove(ORDER_TIMEOUT_KEY, done);
+                }
+
+                if(members.size() < batchSize){
+                    return;
+                }
+            }
+        } catch (Exception e) {
+            // claimed orders come back after retry-after
+            log.error("cancel expired orders fail", e);
+        }
+    }
+}
@@ -0,0 +1,54 @@
+package com.hmdp.utils;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counts events and reports the rate (events per second) over the last completed window.
+ */
+public class RateMeter {
+
+    private final LongAdder total = new LongAdder();
+
+    private final long windowMillis;
+
+    private volatile long windowStart = System.currentTimeMillis();
+
+    private volatile long windowStartCount;
+
+    private volatile double rate;
+
+    public RateMeter(long windowMillis){
+        this.windowMillis = windowMillis;
+    }
+
+    public void mark(long n){
+        total.add(n);
+        roll();
+    }
+
+    public long getCount(){
+        return total.sum();
+    }
+
+    public double getRate(){
+        roll();
+        return rate;
+    }
+
+    private void roll(){
+        long now = System.currentTimeMillis();
+        if(now - windowStart < windowMillis){
+            return;
+        }
+        synchronized (this){
+            long elapsed = now - windowStart;
+            if(elapsed < windowMillis){
+                return;
+            }
+            long count = total.sum();
+            rate = (count - windowStartCount) * 1000.0 / elapsed;
+            windowStartCount = count;
+            windowStart = now;
+        }
+    }
+}
@@ -10,12 +10,38 @@ public class RedisConstants {
 
     public static final Long CACHE_SHOP_TTL = 30L;
     public static final String CACHE_SHOP_KEY = "cache:shop:";
+    // plain JSON copy of a shop for CacheClient.queryBatch, cache:shop:{id} holds the logical expire form
+    public static final String CACHE_SHOP_BATCH_KEY = "cache:shop:batch:";
+    public static final String CACHE_USER_KEY = "cache:user:";
+    public static final Long CACHE_USER_TTL = 30L;
     public static final String SHOP_TYPE_CACHE_KEY = "cache:shopTypes:";
+    public static final String CACHE_INVALIDATE_CHANNEL = "cache:invalidate";
+    public static final String SHOP_BLOOM_ADD_CHANNEL = "bloom:shop:add";
 
     public static final String LOCK_SHOP_KEY = "lock:shop:";
     public static final Long LOCK_SHOP_TTL = 10L;
 
+    public static final String ID_WORKER_KEY = "id:worker:";
+
     public static final String SECKILL_STOCK_KEY = "seckill:stock:";
+    public static final String SECKILL_ORDER_KEY = "seckill:order:";
+    public static final String SECKILL_SEGMENTS_KEY = "seckill:segments:";
+    public static final String SECKILL_WINDOW_KEY = "seckill:window:";
+    public static final String SECKILL_PREHEATED_KEY = "seckill:preheated";
+    public static final String SECKILL_LEASE_KEY = "seckill:lease:";
+    public static final String SECKILL_LEASE_ALIVE_KEY = "seckill:lease-alive:";
+    public static final String SECKILL_SOLD_OUT_CHANNEL = "seckill:soldout";
+    public static final String SECKILL_RESTOCK_CHANNEL = "seckill:restock";
+    public static final String ORDER_STATUS_KEY = "order:status:";
+    public static final String ORDER_STATUS_QUEUED = "QUEUED";
+    public static final String ORDER_STATUS_CREATED = "CREATED";
+    public static final String ORDER_STATUS_FAILED = "FAILED";
+    public static final String ORDER_STATUS_CANCELLED = "CANCELLED";
+    public static final String ORDER_TIMEOUT_KEY = "order:timeout";
+    public static final String ORDER_CANCELLED_KEY = "order:cancelled:";
+    public static final String ORDER_STREAM_KEY = "stream.orders";
+    public static final String ORDER_STREAM_GROUP = "g1";
+    public static final String ORDER_DLQ_KEY = "stream.orders.dlq";
     public static final String BLOG_LIKED_KEY = "blog:liked:";
     public static final String FEED_KEY = "feed:";
     public static final String SHOP_GEO_KEY = "shop:geo:";
@@ -0,0 +1,204 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.io.IoUtil;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.Resource;
+import org.springframework.core.io.support.PathMatchingResourcePatternResolver;
+import org.springframework.dao.DataAccessException;
+import org.springframework.data.redis.connection.ReturnType;
+import org.springframework.data.redis.connection.StringRedisConnection;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Every .lua resource under lua/, loaded into Redis with SCRIPT LOAD at startup and only ever called with EVALSHA.
+ * When Redis lost its script cache (restart, failover, SCRIPT FLUSH) all scripts are loaded again once and the call is retried,
+ * so callers never see NOSCRIPT and the script body is not sent with each call
+ */
+@Slf4j
+@Component
+public class RedisScriptRegistry {
+
+    @javax.annotation.Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    // Every lua/ directory on the classpath, jars included
+    @Value("${hmdp.script.locations:classpath*:lua/*.lua}")
+    private String locations;
+
+    private final Map<String, Script> scripts = new ConcurrentHashMap<>();
+
+    // Bumped per reload, a caller only reloads when nobody did since its call failed
+    private volatile long generation;
+
+    private final LongAdder reloads = new LongAdder();
+
+    private static class Script {
+        private final String name;
+        private final String sha;
+        private final String body;
+        private final LongAdder calls = new LongAdder();
+        private final LongAdder errors = new LongAdder();
+        private final LongAdder totalNanos = new LongAdder();
+        private final LongAccumulator maxNanos = new LongAccumulator(Math::max, 0);
+
+        private Script(String name, String body) {
+            this.name = name;
+            this.body = body;
+            // same SHA1 Redis computes, so EVALSHA works against scripts loaded by another node
+            this.sha = new DefaultRedisScript<>(body).getSha1();
+        }
+    }
+
+    @PostConstruct
+    public void init() throws IOException {
+        for (Resource resource : new PathMatchingResourcePatternResolver().getResources(locations)) {
+            String filename = Objects.requireNonNull(resource.getFilename());
+            String name = filename.substring(0, filename.length() - ".lua".length());
+            String body;
+            try (InputStream in = resource.getInputStream()) {
+                body = IoUtil.readUtf8(in);
+            }
+            scripts.put(name, new Script(name, body));
+        }
+        if(scripts.isEmpty()){
+            // every caller would fail with "unknown redis script", better not to start at all
+            throw new IllegalStateException("no redis scripts found at " + locations);
+        }
+        try {
+            loadAll();
+        } catch (DataAccessException e) {
+            // Redis not reachable yet, the first call loads them
+            log.warn("load redis scripts fail, loading on first use", e);
+        }
+        log.info("redis scripts registered: {}", scripts.keySet());
+    }
+
+    /**
+     * Run a script by name (file name without .lua)
+     * @param resultType Long, Boolean, String or List, bulk replies come back as strings
+     */
+    public <T> T execute(String name, Class<T> resultType, List<String> keys, Object... args) {
+        Script script = scripts.get(name);
+        if(script == null){
+            throw new IllegalArgumentException("unknown redis script " + name);
+        }
+        String[] keysAndArgs = new String[keys.size() + args.length];
+        for (int i = 0; i < keys.size(); i++) {
+            keysAndArgs[i] = keys.get(i);
+        }
+        for (int i = 0; i < args.length; i++) {
+            keysAndArgs[keys.size() + i] = String.valueOf(args[i]);
+        }
+
+        long begin = System.nanoTime();
+        long seen = generation;
+        try {
+            try {
+                return evalSha(script, resultType, keys.size(), keysAndArgs);
+            } catch (DataAccessException e) {
+                if(!isNoScript(e)){
+                    throw e;
+                }
+                reload(seen);
+                return evalSha(script, resultType, keys.size(), keysAndArgs);
+            }
+        } catch (RuntimeException e) {
+            script.errors.increment();
+            throw e;
+        } finally {
+            long elapsed = System.nanoTime() - begin;
+            script.calls.increment();
+            script.totalNanos.add(elapsed);
+            script.maxNanos.accumulate(elapsed);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private <T> T evalSha(Script script, Class<T> resultType, int numKeys, String[] keysAndArgs) {
+        Object result = stringRedisTemplate.execute((RedisCallback<Object>) connection ->
+                ((StringRedisConnection) connection).evalSha(script.sha, ReturnType.fromJavaType(resultType), numKeys, keysAndArgs));
+        return (T) deserialize(result);
+    }
+
+    private static Object deserialize(Object result) {
+        if(result instanceof byte[]){
+            return new String((byte[]) result, StandardCharsets.UTF_8);
+        }
+        if(result instanceof List){
+            List<?> raw = (List<?>) result;
+            List<Object> values = new ArrayList<>(raw.size());
+            raw.forEach(value -> values.add(deserialize(value)));
+            return values;
+        }
+        return result;
+    }
+
+    private synchronized void reload(long seen) {
+        if(generation != seen){
+            return;
+        }
+        log.warn("redis lost its scripts, loading {} scripts again", scripts.size());
+        loadAll();
+        reloads.increment();
+        generation++;
+    }
+
+    private void loadAll() {
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            scripts.values().forEach(script -> connection.scriptingCommands().scriptLoad(script.body.getBytes(StandardCharsets.UTF_8)));
+            return null;
+        });
+    }
+
+    // NOSCRIPT comes wrapped by the driver and by Spring's exception translation
+    private static boolean isNoScript(Throwable e) {
+        for (Throwable current = e; current != null; current = current.getCause()) {
+            if(current.getMessage() != null && current.getMessage().contains("NOSCRIPT")){
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public long getReloads(){
+        return reloads.sum();
+    }
+
+    /**
+     * Calls, errors and latency per script
+     */
+    public Map<String, Object> getStats(){
+        Map<String, Object> stats = new LinkedHashMap<>();
+        scripts.values().stream()
+                .sorted((a, b) -> a.name.compareTo(b.name))
+                .forEach(script -> {
+                    Map<String, Object> stat = new LinkedHashMap<>();
+                    long calls = script.calls.sum();
+                    stat.put("sha", script.sha);
+                    stat.put("calls", calls);
+                    stat.put("errors", script.errors.sum());
+                    stat.put("avgMicros", calls == 0 ? 0 : TimeUnit.NANOSECONDS.toMicros(script.totalNanos.sum() / calls));
+                    stat.put("maxMicros", TimeUnit.NANOSECONDS.toMicros(script.maxNanos.get()));
+                    stats.put(script.name, stat);
+                });
+        return stats;
+    }
+}
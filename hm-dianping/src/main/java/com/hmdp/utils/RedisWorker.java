@@ -1,14 +1,30 @@
 package com.hmdp.utils;
 
 
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Component;
 
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 import javax.annotation.Resource;
+import java.time.Duration;
 import java.time.LocalDateTime;
 import java.time.ZoneOffset;
 import java.time.format.DateTimeFormatter;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
+import static com.hmdp.utils.RedisConstants.ID_WORKER_KEY;
+
+@Slf4j
 @Component
 public class RedisWorker {
 
@@ -16,11 +32,128 @@ public class RedisWorker {
 
     private static final int COUNT_BITS = 32;
 
+    private static final DateTimeFormatter DATE_FORMATTER = DateTimeFormatter.ofPattern("yyyy:MM:dd");
+
+    private static final ExecutorService ID_PREFETCH_EXECUTOR = Executors.newSingleThreadExecutor();
+
+    // Snowflake mode splits the 32 count bits into worker id and a per second sequence
+    private static final int WORKER_BITS = 10;
+
+    private static final int SEQUENCE_BITS = COUNT_BITS - WORKER_BITS;
+
+    private static final long MAX_WORKER_ID = (1L << WORKER_BITS) - 1;
+
+    private static final long SEQUENCE_MASK = (1L << SEQUENCE_BITS) - 1;
+
+    // Lowest bits of an id from nextId(keyPrefix, gene) carry the gene, e.g. the order table shard
+    public static final int GENE_BITS = 6;
+
+    public static final long GENE_MASK = (1L << GENE_BITS) - 1;
+
     @Resource
     private StringRedisTemplate stringRedisTemplate;
 
+    @Resource
+    private RedisScriptRegistry redisScriptRegistry;
+
+    @Resource
+    private NodeIdentity nodeIdentity;
+
+    // redis = one INCR per id, segment = reserve a range with INCRBY and hand it out locally,
+    // snowflake = no network call, worker id leased from Redis at startup. All nodes must use the same mode
+    @Value("${hmdp.id.mode:redis}")
+    private String mode;
+
+    // Worker id lease, renewed by heartbeat
+    @Value("${hmdp.id.worker-lease-ttl:30s}")
+    private Duration workerLeaseTtl;
+
+    private volatile long workerId = -1;
+
+    // last timestamp << SEQUENCE_BITS | last sequence
+    private final AtomicLong snowflakeState = new AtomicLong();
+
+    // Snowflake state per gene, every gene counts its own sequence
+    private final AtomicLong[] geneSnowflakeStates = new AtomicLong[1 << GENE_BITS];
+
+    // Ids reserved per INCRBY in segment mode
+    @Value("${hmdp.id.segment-step:1000}")
+    private int segmentStep;
+
+    // Fetch the next segment in the background once this share of the current one is left
+    @Value("${hmdp.id.prefetch-threshold:0.2}")
+    private double prefetchThreshold;
+
+    private final Map<String, SegmentBuffer> buffers = new ConcurrentHashMap<>();
+
+    // A reserved range [cursor, end] of the counter of one day
+    private static class Segment {
+        private final long epochDay;
+        private final AtomicLong cursor;
+        private final long end;
+
+        Segment(long epochDay, long start, long end){
+            this.epochDay = epochDay;
+            this.cursor = new AtomicLong(start);
+            this.end = end;
+        }
+    }
+
+    // Current and prefetched segment of one key prefix
+    private static class SegmentBuffer {
+        private volatile Segment current;
+        private volatile Segment next;
+        private final AtomicBoolean loading = new AtomicBoolean();
+    }
+
+
+    @PostConstruct
+    private void init(){
+        for (int i = 0; i < geneSnowflakeStates.length; i++) {
+            geneSnowflakeStates[i] = new AtomicLong();
+        }
+        if("snowflake".equals(mode)){
+            leaseWorkerId();
+        }
+    }
+
+    /**
+     * Id whose lowest GENE_BITS bits are the gene, read back with {@link #geneOf(long)}.
+     * Every gene counts on its own, so the counter part is GENE_BITS shorter
+     */
+    public long nextId(String keyPrefix, int gene){
+        if(gene < 0 || gene > GENE_MASK){
+            throw new IllegalArgumentException("gene out of range: " + gene);
+        }
+        long id;
+        long counterMask;
+        if("snowflake".equals(mode)){
+            id = nextSnowflakeId(geneSnowflakeStates[gene], SEQUENCE_MASK >>> GENE_BITS);
+            counterMask = SEQUENCE_MASK;
+        } else {
+            id = nextId(keyPrefix + ":" + gene);
+            counterMask = (1L << COUNT_BITS) - 1;
+        }
+        // shift the counter up and put the gene below it
+        long counter = id & counterMask;
+        if(counter > counterMask >>> GENE_BITS){
+            throw new IllegalStateException("id counter of " + keyPrefix + " gene " + gene + " overflowed");
+        }
+        return (id & ~counterMask) | counter << GENE_BITS | gene;
+    }
+
+    public static int geneOf(long id){
+        return (int) (id & GENE_MASK);
+    }
 
     public long nextId(String keyPrefix){
+        if("snowflake".equals(mode)){
+            return nextSnowflakeId(snowflakeState, SEQUENCE_MASK);
+        }
+        if("segment".equals(mode)){
+            return nextSegmentId(keyPrefix);
+        }
+
         // 1. Generate time stamp
         LocalDateTime now = LocalDateTime.now();
         long nowSecond = now.toEpochSecond(ZoneOffset.UTC);
@@ -28,7 +161,7 @@ public class RedisWorker {
 
         // 2. Generate serial num
         // 2.1 Get current to date day
-        String date = now.format(DateTimeFormatter.ofPattern("yyyy:MM:dd"));
+        String date = now.format(DATE_FORMATTER);
         // 2.2 auto increment based on day
         long count = stringRedisTemplate.opsForValue().increment("icr:" + keyPrefix + ":" + date);
 
@@ -37,6 +170,157 @@ public class RedisWorker {
 
     }
 
+    private long nextSegmentId(String keyPrefix){
+        SegmentBuffer buffer = buffers.computeIfAbsent(keyPrefix, k -> new SegmentBuffer());
+        while(true){
+            // 1. Generate time stamp
+            LocalDateTime now = LocalDateTime.now();
+            long timeStamp = now.toEpochSecond(ZoneOffset.UTC) - BEGIN_TIMESTAMP;
+            long today = now.toLocalDate().toEpochDay();
+
+            // 2. Take the next count of the current segment, counts restart every day like the redis mode
+            Segment segment = buffer.current;
+            if(segment == null || segment.epochDay != today){
+                switchSegment(keyPrefix, buffer, segment, now);
+                continue;
+            }
+            long count = segment.cursor.getAndIncrement();
+            if(count > segment.end){
+                // used up
+                switchSegment(keyPrefix, buffer, segment, now);
+                continue;
+            }
+
+            // 3. Running low, fetch the next one before this one is used up
+            if(segment.end - count < segmentStep * prefetchThreshold){
+                prefetch(keyPrefix, buffer, segment);
+            }
+
+            return timeStamp << COUNT_BITS | count;
+        }
+    }
+
+    private void switchSegment(String keyPrefix, SegmentBuffer buffer, Segment used, LocalDateTime now){
+        synchronized (buffer){
+            // another thread switched already
+            if(buffer.current != used){
+                return;
+            }
+            Segment next = buffer.next;
+            buffer.next = null;
+            if(next == null || next.epochDay != now.toLocalDate().toEpochDay()){
+                // prefetch did not make it in time, fetch on this thread
+                next = fetchSegment(keyPrefix, now);
+            }
+            buffer.current = next;
+        }
+    }
+
+    private void prefetch(String keyPrefix, SegmentBuffer buffer, Segment current){
+        if(buffer.next != null || !buffer.loading.compareAndSet(false, true)){
+            return;
+        }
+        ID_PREFETCH_EXECUTOR.submit(() -> {
+            try {
+                Segment next = fetchSegment(keyPrefix, LocalDateTime.now());
+                synchronized (buffer){
+                    // only keep it if it is ahead of what is in use, so ids never go backwards
+                    Segment inUse = buffer.current;
+                    if(buffer.next == null && (inUse == null || inUse.epochDay != next.epochDay || next.cursor.get() > inUse.end)){
+                        buffer.next = next;
+                    }
+                }
+            } finally {
+                buffer.loading.set(false);
+            }
+        });
+    }
+
+    private Segment fetchSegment(String keyPrefix, LocalDateTime now){
+        // INCRBY reserves [end - step + 1, end] for this node
+        String date = now.format(DATE_FORMATTER);
+        long end = stringRedisTemplate.opsForValue().increment("icr:" + keyPrefix + ":" + date, segmentStep);
+        return new Segment(now.toLocalDate().toEpochDay(), end - segmentStep + 1, end);
+    }
+
+    private long nextSnowflakeId(AtomicLong sequenceState, long sequenceMask){
+        long worker = workerId;
+        if(worker < 0){
+            throw new IllegalStateException("No worker id leased");
+        }
+
+        // Same time base as the other modes so ids from all modes sort together
+        long now = LocalDateTime.now().toEpochSecond(ZoneOffset.UTC) - BEGIN_TIMESTAMP;
+        while(true){
+            long state = sequenceState.get();
+            long lastTimeStamp = state >>> SEQUENCE_BITS;
+            long timeStamp;
+            long sequence;
+            if(now > lastTimeStamp){
+                timeStamp = now;
+                sequence = 0;
+            } else {
+                // Same second, or the clock went back: keep counting on the last second,
+                // and borrow the next second once its sequence is used up. Ids never go backwards
+                timeStamp = lastTimeStamp;
+                sequence = (state & SEQUENCE_MASK) + 1;
+                if(sequence > sequenceMask){
+                    timeStamp++;
+                    sequence = 0;
+                }
+            }
+            if(sequenceState.compareAndSet(state, timeStamp << SEQUENCE_BITS | sequence)){
+                if(now < lastTimeStamp){
+                    log.warn("clock moved back {}s, still using last timestamp", lastTimeStamp - now);
+                }
+                return timeStamp << COUNT_BITS | worker << SEQUENCE_BITS | sequence;
+            }
+        }
+    }
+
+    private void leaseWorkerId(){
+        // Start at a spot derived from the node name, so nodes rarely compete for the same id
+        String owner = nodeIdentity.getName();
+        long start = Math.floorMod(owner.hashCode(), MAX_WORKER_ID + 1);
+        for(long i = 0; i <= MAX_WORKER_ID; i++){
+            long candidate = (start + i) % (MAX_WORKER_ID + 1);
+            String key = ID_WORKER_KEY + candidate;
+            Boolean success = stringRedisTemplate.opsForValue().setIfAbsent(key, owner, workerLeaseTtl);
+            // also take it back if it is still ours from before a restart
+            if(Boolean.TRUE.equals(success) || owner.equals(stringRedisTemplate.opsForValue().get(key))){
+                workerId = candidate;
+                renewWorkerId();
+                log.info("leased worker id {}", candidate);
+                return;
+            }
+        }
+        throw new IllegalStateException("No free worker id, all " + (MAX_WORKER_ID + 1) + " are leased");
+    }
+
+    @Scheduled(fixedDelayString = "${hmdp.id.worker-heartbeat-ms:10000}")
+    public void renewWorkerId(){
+        long worker = workerId;
+        if(!"snowflake".equals(mode) || worker < 0){
+            return;
+        }
+        Long renewed = redisScriptRegistry.execute("worker_renew", Long.class, Collections.singletonList(ID_WORKER_KEY + worker),
+                nodeIdentity.getName(), String.valueOf(workerLeaseTtl.getSeconds()));
+        if(renewed == null || renewed != 1){
+            // lease expired and someone else may own the id now, stop using it and lease a new one
+            log.error("lost worker id {}", worker);
+            workerId = -1;
+            leaseWorkerId();
+        }
+    }
+
+    @PreDestroy
+    public void releaseWorkerId(){
+        long worker = workerId;
+        if(worker >= 0){
+            redisScriptRegistry.execute("unlock", Long.class, Collections.singletonList(ID_WORKER_KEY + worker), nodeIdentity.getName());
+        }
+    }
+
     public static void main(String[] args){
         LocalDateTime time = LocalDateTime.of(2025,1 ,1, 0,0,0);
         time.toEpochSecond(ZoneOffset.UTC);
@@ -0,0 +1,149 @@
+package com.hmdp.utils;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Per voucher concurrency limit in front of seckill, so a sale start can't take every Redis connection
+ */
+@Slf4j
+@Component
+public class SeckillAdmissionGate {
+
+    @Value("${hmdp.seckill.gate.enabled:true}")
+    private boolean enabled;
+
+    // Requests of one voucher running at the same time
+    @Value("${hmdp.seckill.gate.permits:20}")
+    private int defaultPermits;
+
+    // Per voucher overrides, e.g. {10: 50, 11: 5}
+    @Value("#{${hmdp.seckill.gate.voucher-permits:{:}}}")
+    private Map<Long, Integer> voucherPermits;
+
+    // Requests allowed to wait for a permit, the rest are turned away at once
+    @Value("${hmdp.seckill.gate.max-waiting:200}")
+    private int maxWaiting;
+
+    // Longest a waiting request waits for a permit
+    @Value("${hmdp.seckill.gate.max-wait:100ms}")
+    private Duration maxWait;
+
+    // Gates no request used for this long are dropped, so ids of vouchers that aren't on sale don't pile up
+    @Value("${hmdp.seckill.gate.idle-ttl:5m}")
+    private Duration idleTtl;
+
+    private final Map<Long, Gate> gates = new ConcurrentHashMap<>();
+
+    private static class Gate {
+        private final int permits;
+        private final Semaphore semaphore;
+        private final AtomicInteger waiting = new AtomicInteger();
+        private final LongAdder admitted = new LongAdder();
+        private final LongAdder rejected = new LongAdder();
+        // Requests between tryEnter and exit, a gate in use is never dropped
+        private final AtomicInteger users = new AtomicInteger();
+        private volatile long lastUsed = System.currentTimeMillis();
+
+        Gate(int permits){
+            this.permits = permits;
+            this.semaphore = new Semaphore(permits);
+        }
+    }
+
+    /**
+     * @return true if the request may go on, it must call {@link #exit(Long)} when done
+     */
+    public boolean tryEnter(Long voucherId){
+        if(!enabled){
+            return true;
+        }
+        // Taken under the map's lock for the voucher, so evictIdleGates can't drop it in between
+        Gate gate = gates.compute(voucherId, (id, current) -> {
+            Gate g = current != null ? current : new Gate(voucherPermits.getOrDefault(id, defaultPermits));
+            g.users.incrementAndGet();
+            return g;
+        });
+
+        // 1. Free permit, go ahead
+        if(gate.semaphore.tryAcquire()){
+            gate.admitted.increment();
+            return true;
+        }
+
+        // 2. Wait queue is full, fail fast
+        if(gate.waiting.incrementAndGet() > maxWaiting){
+            gate.waiting.decrementAndGet();
+            gate.rejected.increment();
+            leave(gate);
+            return false;
+        }
+
+        // 3. Wait a bit for a permit
+        try {
+            if(gate.semaphore.tryAcquire(maxWait.toMillis(), TimeUnit.MILLISECONDS)){
+                gate.admitted.increment();
+                return true;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            gate.waiting.decrementAndGet();
+        }
+        gate.rejected.increment();
+        leave(gate);
+        return false;
+    }
+
+    public void exit(Long voucherId){
+        if(!enabled){
+            return;
+        }
+        Gate gate = gates.get(voucherId);
+        if(gate != null){
+            gate.semaphore.release();
+            leave(gate);
+        }
+    }
+
+    private void leave(Gate gate){
+        gate.lastUsed = System.currentTimeMillis();
+        gate.users.decrementAndGet();
+    }
+
+    /**
+     * Drop gates of vouchers nobody asked for within idle-ttl, e.g. finished sales or made up voucher ids
+     */
+    @Scheduled(fixedDelayString = "${hmdp.seckill.gate.sweep-interval-ms:60000}")
+    public void evictIdleGates(){
+        long idleSince = System.currentTimeMillis() - idleTtl.toMillis();
+        for (Long voucherId : gates.keySet()) {
+            gates.computeIfPresent(voucherId, (id, gate) -> gate.users.get() == 0 && gate.lastUsed < idleSince ? null : gate);
+        }
+    }
+
+    public Map<Long, Map<String, Object>> getStats(){
+        Map<Long, Map<String, Object>> stats = new LinkedHashMap<>();
+        gates.forEach((voucherId, gate) -> {
+            Map<String, Object> stat = new LinkedHashMap<>();
+            stat.put("permits", gate.permits);
+            stat.put("active", gate.permits - gate.semaphore.availablePermits());
+            stat.put("waiting", gate.waiting.get());
+            stat.put("admitted", gate.admitted.sum());
+            stat.put("rejected", gate.rejected.sum());
+            stats.put(voucherId, stat);
+        });
+        return stats;
+    }
+}
@@ -0,0 +1,344 @@
+package com.hmdp.utils;
+
+import com.baomidou.mybatisplus.core.conditions.query.QueryWrapper;
+import com.hmdp.entity.SeckillVoucher;
+import com.hmdp.entity.VoucherOrder;
+import com.hmdp.mapper.VoucherOrderMapper;
+import com.hmdp.service.ISeckillVoucherService;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.ibatis.cursor.Cursor;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.domain.Range;
+import org.springframework.data.redis.connection.RedisZSetCommands;
+import org.springframework.data.redis.connection.StringRedisConnection;
+import org.springframework.data.redis.connection.stream.MapRecord;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.ScanOptions;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import javax.annotation.Resource;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+import static com.hmdp.utils.RedisConstants.ORDER_DLQ_KEY;
+import static com.hmdp.utils.RedisConstants.SECKILL_LEASE_KEY;
+import static com.hmdp.utils.RedisConstants.SECKILL_ORDER_KEY;
+import static com.hmdp.utils.RedisConstants.SECKILL_PREHEATED_KEY;
+import static com.hmdp.utils.RedisConstants.SECKILL_SEGMENTS_KEY;
+import static com.hmdp.utils.RedisConstants.SECKILL_STOCK_KEY;
+
+/**
+ * Compares Redis seckill state with MySQL and reports or repairs the difference:
+ * buyers in tb_voucher_order vs the seckill:order sets, and tb_seckill_voucher.stock vs seckill:stock.
+ * Both sides are streamed in batches (MyBatis cursor, SSCAN), so memory doesn't grow with the number of buyers
+ */
+@Slf4j
+@Component
+public class SeckillReconciler {
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private VoucherOrderMapper voucherOrderMapper;
+
+    @Resource
+    private ISeckillVoucherService seckillVoucherService;
+
+    @Resource
+    private OrderShardRouter orderShardRouter;
+
+    @Resource
+    private OrderStreamMonitor orderStreamMonitor;
+
+    @Resource
+    private TransactionTemplate transactionTemplate;
+
+    @Value("${hmdp.seckill.reconcile.enabled:false}")
+    private boolean enabled;
+
+    // report = log the difference only, repair = also fix Redis
+    @Value("${hmdp.seckill.reconcile.mode:report}")
+    private String mode;
+
+    // Buyers checked per round trip
+    @Value("${hmdp.seckill.reconcile.batch-size:500}")
+    private int batchSize;
+
+    // Cap on buyers checked per second, keeps the job from competing with a sale
+    @Value("${hmdp.seckill.reconcile.max-rows-per-second:5000}")
+    private int maxRowsPerSecond;
+
+    /**
+     * Reconcile every preheated voucher whose sale is not running right now
+     */
+    @Scheduled(fixedDelayString = "${hmdp.seckill.reconcile.interval-ms:3600000}")
+    public void reconcileAll(){
+        if(!enabled){
+            return;
+        }
+        Set<String> preheated = stringRedisTemplate.opsForSet().members(SECKILL_PREHEATED_KEY);
+        if(preheated == null){
+            return;
+        }
+        for (String id : preheated) {
+            try {
+                reconcile(Long.valueOf(id), "repair".equals(mode), false);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (Exception e) {
+                log.error("reconcile seckill voucher {} fail", id, e);
+            }
+        }
+    }
+
+    /**
+     * @param repair fix Redis, changes that depend on orders still in the stream are only made when it is empty
+     *               and no order of the voucher waits in the dead letter stream
+     * @param force also run while the sale is live
+     */
+    public Map<String, Object> reconcile(Long voucherId, boolean repair, boolean force) throws InterruptedException {
+        Map<String, Object> report = new LinkedHashMap<>();
+        report.put("voucherId", voucherId);
+
+        // 0. Leave running sales alone
+        SeckillVoucher voucher = seckillVoucherService.getById(voucherId);
+        if(voucher == null){
+            report.put("skipped", "voucher not found");
+            return report;
+        }
+        LocalDateTime now = LocalDateTime.now();
+        if(!force && !now.isBefore(voucher.getBeginTime()) && !now.isAfter(voucher.getEndTime())){
+            report.put("skipped", "sale is running");
+            return report;
+        }
+        // queued orders are in Redis but not in MySQL yet, only repair what they could explain once they are written.
+        // Dead lettered orders of the voucher may still be replayed, they count as queued
+        long deadLettered = deadLettered(voucherId);
+        boolean settled = orderStreamMonitor.getBacklog() == 0 && deadLettered == 0;
+        report.put("deadLettered", deadLettered);
+        report.put("settled", settled);
+
+        String segmentsValue = stringRedisTemplate.opsForValue().get(SECKILL_SEGMENTS_KEY + voucherId);
+        int segments = segmentsValue == null ? 1 : Math.max(Integer.parseInt(segmentsValue), 1);
+
+        // 1. Buyers in MySQL missing from the Redis order set, they could buy a second time
+        long dbBuyers = 0;
+        long missingInRedis = 0;
+        for (int shard = 0; shard < orderShardRouter.getShards(); shard++) {
+            long[] counts = orderShardRouter.route(shard, () -> transactionTemplate.execute(status -> scanDbBuyers(voucherId, segments, repair)));
+            dbBuyers += counts[0];
+            missingInRedis += counts[1];
+        }
+        report.put("dbBuyers", dbBuyers);
+        report.put("missingInRedis", missingInRedis);
+
+        // 2. Buyers in the Redis order set without an order in MySQL
+        long redisBuyers = 0;
+        long missingInDb = 0;
+        for (int segment = 0; segment < segments; segment++) {
+            String orderKey = segments > 1 ? SECKILL_ORDER_KEY + voucherId + ":" + segment : SECKILL_ORDER_KEY + voucherId;
+            long[] counts = scanRedisBuyers(voucherId, orderKey, repair && settled);
+            redisBuyers += counts[0];
+            missingInDb += counts[1];
+        }
+        report.put("redisBuyers", redisBuyers);
+        report.put("missingInDb", missingInDb);
+
+        // 3. Stock, units leased to nodes are still part of the Redis stock
+        long redisStock = 0;
+        for (int segment = 0; segment < segments; segment++) {
+            String stock = stringRedisTemplate.opsForValue().get(segments > 1 ? SECKILL_STOCK_KEY + voucherId + ":" + segment : SECKILL_STOCK_KEY + voucherId);
+            redisStock += stock == null ? 0 : Long.parseLong(stock);
+        }
+        redisStock += leasedUnits(voucherId);
+        long stockDiff = voucher.getStock() - redisStock;
+        report.put("dbStock", voucher.getStock());
+        report.put("redisStock", redisStock);
+        if(repair && settled && stockDiff != 0){
+            adjustStock(voucherId, segments, stockDiff);
+            report.put("stockRepaired", stockDiff);
+        }
+
+        log.info("reconciled seckill voucher {}: {}", voucherId, report);
+        return report;
+    }
+
+    // Entries of the voucher in stream.orders.dlq, read page by page  XRANGE stream.orders.dlq (last + COUNT n
+    private long deadLettered(Long voucherId) {
+        long count = 0;
+        Range<String> range = Range.unbounded();
+        while(true){
+            List<MapRecord<String, Object, Object>> records = stringRedisTemplate.opsForStream()
+                    .range(ORDER_DLQ_KEY, range, RedisZSetCommands.Limit.limit().count(batchSize));
+            if(records == null || records.isEmpty()){
+                return count;
+            }
+            for (MapRecord<String, Object, Object> record : records) {
+                if(voucherId.toString().equals(String.valueOf(record.getValue().get("voucherId")))){
+                    count++;
+                }
+            }
+            if(records.size() < batchSize){
+                return count;
+            }
+            range = Range.rightUnbounded(Range.Bound.exclusive(records.get(records.size() - 1).getId().getValue()));
+        }
+    }
+
+    // {buyers, missing}
+    private long[] scanDbBuyers(Long voucherId, int segments, boolean repair) {
+        long buyers = 0;
+        long missing = 0;
+        List<Long> batch = new ArrayList<>(batchSize);
+        try (Cursor<Long> cursor = voucherOrderMapper.scanUserIds(voucherId)) {
+            for (Long userId : cursor) {
+                batch.add(userId);
+                if(batch.size() >= batchSize){
+                    buyers += batch.size();
+                    missing += checkInRedis(voucherId, segments, batch, repair);
+                    batch.clear();
+                }
+            }
+            if(!batch.isEmpty()){
+                buyers += batch.size();
+                missing += checkInRedis(voucherId, segments, batch, repair);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (Exception e) {
+            throw new IllegalStateException("scan orders of voucher " + voucherId + " fail", e);
+        }
+        return new long[]{buyers, missing};
+    }
+
+    private long checkInRedis(Long voucherId, int segments, List<Long> userIds, boolean repair) throws InterruptedException {
+        long begin = System.currentTimeMillis();
+        // SISMEMBER for the whole batch in one pipeline
+        List<Object> members = stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection conn = (StringRedisConnection) connection;
+            userIds.forEach(userId -> conn.sIsMember(orderKey(voucherId, segments, userId), userId.toString()));
+            return null;
+        });
+        List<Long> missing = new ArrayList<>();
+        for (int i = 0; i < userIds.size(); i++) {
+            if(!Boolean.TRUE.equals(members.get(i))){
+                missing.add(userIds.get(i));
+            }
+        }
+        // an order in MySQL always blocks a second purchase, safe to add back any time
+        if(repair && !missing.isEmpty()){
+            stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                StringRedisConnection conn = (StringRedisConnection) connection;
+                missing.forEach(userId -> conn.sAdd(orderKey(voucherId, segments, userId), userId.toString()));
+                return null;
+            });
+        }
+        throttle(begin, userIds.size());
+        return missing.size();
+    }
+
+    // {buyers, missing}
+    private long[] scanRedisBuyers(Long voucherId, String orderKey, boolean repair) throws InterruptedException {
+        long buyers = 0;
+        long missing = 0;
+        List<Long> batch = new ArrayList<>(batchSize);
+        try (org.springframework.data.redis.core.Cursor<String> cursor = stringRedisTemplate.opsForSet()
+                .scan(orderKey, ScanOptions.scanOptions().count(batchSize).build())) {
+            while(cursor.hasNext()){
+                batch.add(Long.valueOf(cursor.next()));
+                if(batch.size() >= batchSize){
+                    buyers += batch.size();
+                    missing += checkInDb(voucherId, orderKey, batch, repair);
+                    batch.clear();
+                }
+            }
+        }
+        if(!batch.isEmpty()){
+            buyers += batch.size();
+            missing += checkInDb(voucherId, orderKey, batch, repair);
+        }
+        return new long[]{buyers, missing};
+    }
+
+    private long checkInDb(Long voucherId, String orderKey, List<Long> userIds, boolean repair) throws InterruptedException {
+        long begin = System.currentTimeMillis();
+        // one IN query per shard
+        Set<Long> found = new HashSet<>();
+        Map<Integer, List<Long>> usersByShard = userIds.stream().collect(Collectors.groupingBy(orderShardRouter::shardOfUser));
+        usersByShard.forEach((shard, users) -> orderShardRouter.route(shard, () -> voucherOrderMapper.selectObjs(
+                new QueryWrapper<VoucherOrder>().select("user_id")
+                        .eq("voucher_id", voucherId)
+                        .ne("status", 4)
+                        .in("user_id", users)))
+                .forEach(userId -> found.add(((Number) userId).longValue())));
+
+        List<String> missing = userIds.stream()
+                .filter(userId -> !found.contains(userId))
+                .map(String::valueOf)
+                .collect(Collectors.toList());
+        // the order was lost before it reached MySQL, let the user buy again
+        if(repair && !missing.isEmpty()){
+            stringRedisTemplate.opsForSet().remove(orderKey, missing.toArray());
+        }
+        throttle(begin, userIds.size());
+        return missing.size();
+    }
+
+    private long leasedUnits(Long voucherId) {
+        // HGET seckill:lease:{node} voucherId over every node
+        return stringRedisTemplate.execute((RedisCallback<Long>) connection -> {
+            long leased = 0;
+            try (org.springframework.data.redis.core.Cursor<byte[]> keys = connection.scan(
+                    ScanOptions.scanOptions().match(SECKILL_LEASE_KEY + "*").count(100).build())) {
+                while(keys.hasNext()){
+                    byte[] units = connection.hGet(keys.next(), voucherId.toString().getBytes());
+                    leased += units == null ? 0 : Long.parseLong(new String(units));
+                }
+            }
+            return leased;
+        });
+    }
+
+    private void adjustStock(Long voucherId, int segments, long diff) {
+        if(segments <= 1 || diff > 0){
+            // missing units go to the single key or the first segment
+            String key = segments > 1 ? SECKILL_STOCK_KEY + voucherId + ":0" : SECKILL_STOCK_KEY + voucherId;
+            stringRedisTemplate.opsForValue().increment(key, diff);
+            return;
+        }
+        // too many units, take them from the segments that have them
+        long remaining = -diff;
+        for (int segment = 0; segment < segments && remaining > 0; segment++) {
+            String key = SECKILL_STOCK_KEY + voucherId + ":" + segment;
+            String stock = stringRedisTemplate.opsForValue().get(key);
+            long take = Math.min(remaining, stock == null ? 0 : Long.parseLong(stock));
+            if(take > 0){
+                stringRedisTemplate.opsForValue().increment(key, -take);
+                remaining -= take;
+            }
+        }
+    }
+
+    private static String orderKey(Long voucherId, int segments, Long userId) {
+        return segments > 1 ? SECKILL_ORDER_KEY + voucherId + ":" + (userId % segments) : SECKILL_ORDER_KEY + voucherId;
+    }
+
+    // Sleep so that no more than maxRowsPerSecond are checked
+    private void throttle(long begin, int rows) throws InterruptedException {
+        long wait = rows * 1000L / Math.max(maxRowsPerSecond, 1) - (System.currentTimeMillis() - begin);
+        if(wait > 0){
+            Thread.sleep(wait);
+        }
+    }
+}
@@ -0,0 +1,108 @@
+package com.hmdp.utils;
+
+import cn.hutool.cache.CacheUtil;
+import cn.hutool.cache.impl.LRUCache;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.connection.Message;
+import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.concurrent.atomic.LongAdder;
+
+import static com.hmdp.utils.RedisConstants.SECKILL_RESTOCK_CHANNEL;
+import static com.hmdp.utils.RedisConstants.SECKILL_SEGMENTS_KEY;
+import static com.hmdp.utils.RedisConstants.SECKILL_SOLD_OUT_CHANNEL;
+import static com.hmdp.utils.RedisConstants.SECKILL_STOCK_KEY;
+
+/**
+ * Local sold out flags for seckill vouchers, shared between nodes over Redis pub/sub
+ */
+@Slf4j
+@Component
+public class SeckillSoldOutCache implements MessageListener {
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private RedisMessageListenerContainer redisMessageListenerContainer;
+
+    // A flag is dropped after this long so a restock that skipped clear() is still picked up
+    @Value("${hmdp.seckill.sold-out-ttl:30s}")
+    private Duration soldOutTtl;
+
+    // Max vouchers flagged at once, the least recently flagged one is dropped first
+    @Value("${hmdp.seckill.sold-out-capacity:10000}")
+    private int soldOutCapacity;
+
+    // voucher id -> flag, expires sold-out-ttl after it was set
+    private LRUCache<Long, Boolean> soldOut;
+
+    private final LongAdder rejected = new LongAdder();
+
+    @PostConstruct
+    private void init(){
+        soldOut = CacheUtil.newLRUCache(soldOutCapacity, soldOutTtl.toMillis());
+        redisMessageListenerContainer.addMessageListener(this, new ChannelTopic(SECKILL_SOLD_OUT_CHANNEL));
+        redisMessageListenerContainer.addMessageListener(this, new ChannelTopic(SECKILL_RESTOCK_CHANNEL));
+    }
+
+    public boolean isSoldOut(Long voucherId){
+        // Reads don't extend the flag, once expired the next request goes to Redis to check again
+        if(soldOut.get(voucherId, false) == null){
+            return false;
+        }
+        rejected.increment();
+        return true;
+    }
+
+    public void markSoldOut(Long voucherId){
+        // Only broadcast the first time, every node that sees stock 0 ends up here
+        if(soldOut.containsKey(voucherId)){
+            return;
+        }
+        // Ids of vouchers without stock in Redis answer "stock not enough" as well, they are not flagged
+        // so made up ids neither push out real flags nor go out to every node
+        Long known = stringRedisTemplate.countExistingKeys(Arrays.asList(SECKILL_STOCK_KEY + voucherId, SECKILL_SEGMENTS_KEY + voucherId));
+        if(known == null || known == 0){
+            return;
+        }
+        soldOut.put(voucherId, Boolean.TRUE);
+        stringRedisTemplate.convertAndSend(SECKILL_SOLD_OUT_CHANNEL, voucherId.toString());
+    }
+
+    // Call after stock of the voucher is put back into Redis
+    public void clear(Long voucherId){
+        soldOut.remove(voucherId);
+        stringRedisTemplate.convertAndSend(SECKILL_RESTOCK_CHANNEL, voucherId.toString());
+    }
+
+    public long getRejected(){
+        return rejected.sum();
+    }
+
+    public int size(){
+        return soldOut.size();
+    }
+
+    @Override
+    public void onMessage(Message message, byte[] pattern) {
+        String channel = new String(message.getChannel(), StandardCharsets.UTF_8);
+        Long voucherId = Long.valueOf(new String(message.getBody(), StandardCharsets.UTF_8));
+        if(SECKILL_SOLD_OUT_CHANNEL.equals(channel)){
+            soldOut.put(voucherId, Boolean.TRUE);
+        } else {
+            soldOut.remove(voucherId);
+        }
+        log.debug("voucher {} {}", voucherId, channel);
+    }
+}
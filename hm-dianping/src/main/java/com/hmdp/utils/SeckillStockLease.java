@@ -0,0 +1,262 @@
+package com.hmdp.utils;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.core.Cursor;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.ScanOptions;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.hmdp.utils.RedisConstants.SECKILL_LEASE_ALIVE_KEY;
+import static com.hmdp.utils.RedisConstants.SECKILL_LEASE_KEY;
+
+/**
+ * Leases blocks of seckill stock from Redis to this node, so most purchases only need the duplicate check remotely.
+ * The lease is tracked per node in seckill:lease:{node}, units are removed from it when sold and
+ * unsold units go back to the stock when the lease expires, on shutdown, or on the next start after a crash.
+ * Each node renews seckill:lease-alive:{node}, once that expires any other node gives the whole lease back,
+ * so stock of a node that is gone for good is sold elsewhere.
+ */
+@Slf4j
+@Component
+public class SeckillStockLease {
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private RedisScriptRegistry redisScriptRegistry;
+
+    @Resource
+    private SeckillSoldOutCache seckillSoldOutCache;
+
+    @Resource
+    private NodeIdentity nodeIdentity;
+
+    @Value("${hmdp.seckill.lease.enabled:false}")
+    private boolean enabled;
+
+    // Units taken from Redis per refill
+    @Value("${hmdp.seckill.lease.block-size:50}")
+    private int blockSize;
+
+    // Unsold units are given back this long after the last refill, so other nodes can sell them
+    @Value("${hmdp.seckill.lease.ttl:5s}")
+    private Duration ttl;
+
+    // Other nodes take over the lease of a node that has not renewed it for this long
+    @Value("${hmdp.seckill.lease.heartbeat-ttl:30s}")
+    private Duration heartbeatTtl;
+
+    private final Map<Long, Lease> leases = new ConcurrentHashMap<>();
+
+    private String leaseKey;
+
+    private String aliveKey;
+
+    private static class Lease {
+        private final AtomicInteger remaining = new AtomicInteger();
+        private volatile long expireAt;
+        // end of the sale window from the last refill, -1 if none
+        private volatile long saleEnd = -1;
+    }
+
+    @PostConstruct
+    private void init(){
+        leaseKey = SECKILL_LEASE_KEY + nodeIdentity.getName();
+        aliveKey = SECKILL_LEASE_ALIVE_KEY + nodeIdentity.getName();
+        if(enabled){
+            returnOrphanedLeases();
+        }
+    }
+
+    public boolean isEnabled(){
+        return enabled;
+    }
+
+    /**
+     * Take one unit of stock for the voucher, refilling the lease from Redis when it is empty
+     * @return 0 on success, 1 if the voucher is sold out, 3 if the sale has not started, 4 if it has ended
+     */
+    public int tryAcquire(Long voucherId){
+        Lease lease = leases.computeIfAbsent(voucherId, id -> new Lease());
+        while(true){
+            // leased units are not sold after the sale ended, they go back with the lease
+            if(lease.saleEnd >= 0 && System.currentTimeMillis() > lease.saleEnd){
+                return 4;
+            }
+            int remaining = lease.remaining.get();
+            if(remaining > 0){
+                if(lease.remaining.compareAndSet(remaining, remaining - 1)){
+                    return 0;
+                }
+                continue;
+            }
+
+            // Lease is empty, one thread per voucher refills it
+            synchronized (lease){
+                if(lease.remaining.get() > 0){
+                    continue;
+                }
+                if(seckillSoldOutCache.isSoldOut(voucherId)){
+                    return 1;
+                }
+                List<?> reply = redisScriptRegistry.execute("seckill_lease", List.class, Collections.emptyList(),
+                        voucherId.toString(), leaseKey, String.valueOf(blockSize), aliveKey, String.valueOf(heartbeatTtl.toMillis()),
+                        String.valueOf(System.currentTimeMillis()));
+                long granted = ((Number) reply.get(0)).longValue();
+                if(granted < 0){
+                    // outside the sale window, -3 / -4
+                    return (int) -granted;
+                }
+                if(granted == 0){
+                    seckillSoldOutCache.markSoldOut(voucherId);
+                    return 1;
+                }
+                lease.saleEnd = ((Number) reply.get(1)).longValue();
+                lease.expireAt = System.currentTimeMillis() + ttl.toMillis();
+                lease.remaining.addAndGet((int) granted);
+            }
+        }
+    }
+
+    // Put back a unit taken by tryAcquire that was not sold
+    public void release(Long voucherId){
+        Lease lease = leases.get(voucherId);
+        if(lease != null){
+            lease.remaining.incrementAndGet();
+        }
+    }
+
+    // The lease was taken over by another node, the units held locally are no longer backed by Redis
+    public void drop(Long voucherId){
+        Lease lease = leases.get(voucherId);
+        if(lease != null){
+            lease.remaining.set(0);
+        }
+    }
+
+    /**
+     * Duplicate check and order message for a unit taken by tryAcquire
+     * @return 0 on success, 2 if the user already bought the voucher, 6 if the lease was taken over
+     */
+    public Long order(Long voucherId, Long userId, long orderId, Duration statusTtl){
+        return redisScriptRegistry.execute("seckill_leased", Long.class, Collections.emptyList(),
+                voucherId.toString(), userId.toString(), String.valueOf(orderId), leaseKey, String.valueOf(statusTtl.getSeconds()));
+    }
+
+    @Scheduled(fixedDelay = 1000)
+    public void returnExpiredLeases(){
+        if(!enabled){
+            return;
+        }
+        renewHeartbeat();
+        long now = System.currentTimeMillis();
+        leases.forEach((voucherId, lease) -> {
+            if(lease.expireAt <= now && lease.remaining.get() > 0){
+                returnLease(voucherId, lease);
+            }
+        });
+    }
+
+    @PreDestroy
+    public void returnAllLeases(){
+        leases.forEach(this::returnLease);
+    }
+
+    // Only while this node holds stock, a node that never leased anything leaves no key behind
+    private void renewHeartbeat(){
+        if(getLeasedUnits() <= 0){
+            return;
+        }
+        try {
+            stringRedisTemplate.opsForValue().set(aliveKey, "1", heartbeatTtl);
+        } catch (Exception e) {
+            log.error("renew stock lease of {} fail", leaseKey, e);
+        }
+    }
+
+    /**
+     * Give back the leases of nodes that stopped renewing them, e.g. crashed or scaled away for good
+     */
+    @Scheduled(fixedDelayString = "${hmdp.seckill.lease.reclaim-interval-ms:10000}")
+    public void reclaimDeadLeases(){
+        if(!enabled){
+            return;
+        }
+        try {
+            // SCAN seckill:lease:*
+            List<String> keys = stringRedisTemplate.execute((RedisCallback<List<String>>) connection -> {
+                List<String> found = new ArrayList<>();
+                try (Cursor<byte[]> cursor = connection.scan(
+                        ScanOptions.scanOptions().match(SECKILL_LEASE_KEY + "*").count(100).build())) {
+                    cursor.forEachRemaining(key -> found.add(new String(key, StandardCharsets.UTF_8)));
+                }
+                return found;
+            });
+            for (String key : keys) {
+                if(key.equals(leaseKey)){
+                    continue;
+                }
+                String node = key.substring(SECKILL_LEASE_KEY.length());
+                Map<Object, Object> held = stringRedisTemplate.opsForHash().entries(key);
+                Long returned = redisScriptRegistry.execute("seckill_lease_reclaim", Long.class, Collections.emptyList(),
+                        key, SECKILL_LEASE_ALIVE_KEY + node);
+                if(returned != null && returned > 0){
+                    // stock is back in Redis, let every node sell it again
+                    held.keySet().forEach(voucherId -> seckillSoldOutCache.clear(Long.valueOf(voucherId.toString())));
+                    log.info("returned {} units leased to dead node {}", returned, node);
+                }
+            }
+        } catch (Exception e) {
+            log.error("reclaim dead stock leases fail", e);
+        }
+    }
+
+    private void returnLease(Long voucherId, Lease lease){
+        int unsold = lease.remaining.getAndSet(0);
+        if(unsold <= 0){
+            return;
+        }
+        try {
+            Long returned = redisScriptRegistry.execute("seckill_lease_return", Long.class, Collections.emptyList(),
+                    voucherId.toString(), leaseKey, String.valueOf(unsold));
+            log.debug("returned {} units of voucher {} to stock", returned, voucherId);
+            // stock is back in Redis, let every node sell it again
+            seckillSoldOutCache.clear(voucherId);
+        } catch (Exception e) {
+            // still recorded in the lease hash, given back on the next start
+            log.error("return lease of voucher {} fail", voucherId, e);
+        }
+    }
+
+    // A previous run of this node may have died holding stock, nothing is sold locally yet so all of it goes back
+    private void returnOrphanedLeases(){
+        Map<Object, Object> orphaned = stringRedisTemplate.opsForHash().entries(leaseKey);
+        orphaned.forEach((voucherId, amount) -> {
+            redisScriptRegistry.execute("seckill_lease_return", Long.class, Collections.emptyList(),
+                    voucherId.toString(), leaseKey, amount.toString());
+            seckillSoldOutCache.clear(Long.valueOf(voucherId.toString()));
+            log.info("returned {} orphaned units of voucher {}", amount, voucherId);
+        });
+    }
+
+    // Unsold units currently held by this node, all vouchers
+    public int getLeasedUnits(){
+        return leases.values().stream().mapToInt(lease -> lease.remaining.get()).sum();
+    }
+}
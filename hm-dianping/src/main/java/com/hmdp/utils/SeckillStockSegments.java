@@ -0,0 +1,108 @@
+package com.hmdp.utils;
+
+import cn.hutool.cache.CacheUtil;
+import cn.hutool.cache.impl.LRUCache;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.connection.Message;
+import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static com.hmdp.utils.RedisConstants.SECKILL_ORDER_KEY;
+import static com.hmdp.utils.RedisConstants.SECKILL_RESTOCK_CHANNEL;
+import static com.hmdp.utils.RedisConstants.SECKILL_SEGMENTS_KEY;
+import static com.hmdp.utils.RedisConstants.SECKILL_STOCK_KEY;
+
+/**
+ * Stock segment layout of seckill vouchers, cached on this node so seckill.lua gets the keys of one segment
+ * instead of reading seckill:segments:{id} on every call. Dropped on restock, which is when a layout is written
+ */
+@Slf4j
+@Component
+public class SeckillStockSegments implements MessageListener {
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private RedisMessageListenerContainer redisMessageListenerContainer;
+
+    // A layout is read again after this long, also forgets the segments seen empty
+    @Value("${hmdp.seckill.segments-cache.ttl:60s}")
+    private Duration ttl;
+
+    // Max vouchers cached per node, the least recently used goes first
+    @Value("${hmdp.seckill.segments-cache.capacity:10000}")
+    private int capacity;
+
+    // voucher id -> layout
+    private LRUCache<Long, Layout> layouts;
+
+    @PostConstruct
+    private void init(){
+        layouts = CacheUtil.newLRUCache(capacity, ttl.toMillis());
+        redisMessageListenerContainer.addMessageListener(this, new ChannelTopic(SECKILL_RESTOCK_CHANNEL));
+    }
+
+    // Number of stock segments of the voucher, 1 for the single seckill:stock:{id} key
+    public int count(Long voucherId){
+        return layout(voucherId).count;
+    }
+
+    // seckill:stock:{id}:{segment}, or seckill:stock:{id} when the voucher is not segmented
+    public static String stockKey(Long voucherId, int segments, int segment){
+        return segments > 1 ? SECKILL_STOCK_KEY + voucherId + ":" + segment : SECKILL_STOCK_KEY + voucherId;
+    }
+
+    // seckill:order:{id}:{segment}, or seckill:order:{id} when the voucher is not segmented
+    public static String orderKey(Long voucherId, int segments, int segment){
+        return segments > 1 ? SECKILL_ORDER_KEY + voucherId + ":" + segment : SECKILL_ORDER_KEY + voucherId;
+    }
+
+    // Segments that ran out are skipped by later buyers on this node until the layout expires or a restock
+    public boolean isEmpty(Long voucherId, int segment){
+        return layout(voucherId).empty.contains(segment);
+    }
+
+    public void markEmpty(Long voucherId, int segment){
+        layout(voucherId).empty.add(segment);
+    }
+
+    private Layout layout(Long voucherId){
+        Layout layout = layouts.get(voucherId, false);
+        if(layout == null){
+            // GET seckill:segments:{id}, missing for vouchers on a single stock key
+            String segments = stringRedisTemplate.opsForValue().get(SECKILL_SEGMENTS_KEY + voucherId);
+            layout = new Layout(segments == null ? 1 : Math.max(Integer.parseInt(segments), 1));
+            layouts.put(voucherId, layout);
+        }
+        return layout;
+    }
+
+    @Override
+    public void onMessage(Message message, byte[] pattern) {
+        Long voucherId = Long.valueOf(new String(message.getBody(), StandardCharsets.UTF_8));
+        layouts.remove(voucherId);
+        log.debug("voucher {} segment layout dropped", voucherId);
+    }
+
+    private static class Layout {
+        private final int count;
+
+        private final Set<Integer> empty = ConcurrentHashMap.newKeySet();
+
+        Layout(int count){
+            this.count = count;
+        }
+    }
+}
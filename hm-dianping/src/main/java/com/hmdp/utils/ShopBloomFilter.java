@@ -0,0 +1,168 @@
+package com.hmdp.utils;
+
+import com.hmdp.mapper.ShopMapper;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.ibatis.cursor.Cursor;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.connection.Message;
+import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+import static com.hmdp.utils.RedisConstants.SHOP_BLOOM_ADD_CHANNEL;
+
+/**
+ * Ids of every tb_shop row, checked before the shop cache so unknown ids reach neither Redis nor the DB.
+ * Built from the table at startup and rebuilt periodically to forget deleted shops,
+ * new shops are added on every node over Redis pub/sub
+ */
+@Slf4j
+@Component
+public class ShopBloomFilter implements MessageListener {
+
+    @Resource
+    private ShopMapper shopMapper;
+
+    @Resource
+    private TransactionTemplate transactionTemplate;
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private RedisMessageListenerContainer redisMessageListenerContainer;
+
+    @Value("${hmdp.bloom.shop.enabled:true}")
+    private boolean enabled;
+
+    // Memory is about expected-insertions * -ln(fpp) / ln(2)^2 bits, 1M shops at 1% is ~1.2MB
+    @Value("${hmdp.bloom.shop.expected-insertions:1000000}")
+    private long expectedInsertions;
+
+    @Value("${hmdp.bloom.shop.fpp:0.01}")
+    private double fpp;
+
+    // null until the first build finished, everything passes until then
+    private volatile BloomFilter filter;
+
+    // Filter being built, shops added meanwhile go into both
+    private volatile BloomFilter building;
+
+    private volatile long size;
+
+    private final LongAdder rejected = new LongAdder();
+
+    @PostConstruct
+    private void init(){
+        if(!enabled){
+            return;
+        }
+        redisMessageListenerContainer.addMessageListener(this, new ChannelTopic(SHOP_BLOOM_ADD_CHANNEL));
+        try {
+            rebuild();
+        } catch (Exception e) {
+            // fail open, the cache falls back to empty values for unknown ids
+            log.error("build shop bloom filter fail", e);
+        }
+    }
+
+    public boolean mightContain(Long id){
+        BloomFilter current = filter;
+        if(current == null || id == null || current.mightContain(id)){
+            return true;
+        }
+        rejected.increment();
+        return false;
+    }
+
+    // Call after a shop is inserted
+    public void add(Long id){
+        addLocal(id);
+        stringRedisTemplate.convertAndSend(SHOP_BLOOM_ADD_CHANNEL, id.toString());
+    }
+
+    private void addLocal(Long id){
+        BloomFilter current = filter;
+        if(current != null){
+            current.add(id);
+        }
+        BloomFilter next = building;
+        if(next != null){
+            next.add(id);
+        }
+    }
+
+    @Scheduled(fixedDelayString = "${hmdp.bloom.shop.rebuild-interval-ms:3600000}",
+            initialDelayString = "${hmdp.bloom.shop.rebuild-interval-ms:3600000}")
+    public void scheduledRebuild(){
+        if(!enabled){
+            return;
+        }
+        try {
+            rebuild();
+        } catch (Exception e) {
+            // keep the current filter
+            log.error("rebuild shop bloom filter fail", e);
+        }
+    }
+
+    // Stream every id into a new filter and swap it in
+    public synchronized void rebuild(){
+        long begin = System.currentTimeMillis();
+        BloomFilter next = new BloomFilter(expectedInsertions, fpp);
+        building = next;
+        try {
+            // the cursor needs an open connection until it is read to the end
+            long count = transactionTemplate.execute(status -> {
+                long n = 0;
+                try (Cursor<Long> ids = shopMapper.scanIds()) {
+                    for (Long id : ids) {
+                        next.add(id);
+                        n++;
+                    }
+                } catch (Exception e) {
+                    throw new IllegalStateException("scan shop ids fail", e);
+                }
+                return n;
+            });
+            filter = next;
+            size = count;
+            if(count > expectedInsertions){
+                log.warn("{} shops exceed hmdp.bloom.shop.expected-insertions {}, false positive rate is above {}", count, expectedInsertions, fpp);
+            }
+            log.info("shop bloom filter built with {} ids in {} ms", count, System.currentTimeMillis() - begin);
+        } finally {
+            building = null;
+        }
+    }
+
+    public Map<String, Object> getStats(){
+        Map<String, Object> stats = new LinkedHashMap<>();
+        BloomFilter current = filter;
+        stats.put("enabled", enabled);
+        stats.put("ready", current != null);
+        stats.put("ids", size);
+        stats.put("expectedInsertions", expectedInsertions);
+        stats.put("fpp", fpp);
+        stats.put("bytes", current == null ? 0 : current.getBits() / 8);
+        stats.put("hashes", current == null ? 0 : current.getHashes());
+        stats.put("rejected", rejected.sum());
+        return stats;
+    }
+
+    @Override
+    public void onMessage(Message message, byte[] pattern) {
+        addLocal(Long.valueOf(new String(message.getBody(), StandardCharsets.UTF_8)));
+    }
+}
@@ -1,10 +1,7 @@
 package com.hmdp.utils;
 
 import cn.hutool.core.lang.UUID;
-import org.springframework.core.io.ClassPathResource;
 import org.springframework.data.redis.core.StringRedisTemplate;
-import org.springframework.data.redis.core.script.DefaultRedisScript;
-import org.springframework.data.redis.core.script.RedisScript;
 
 import java.util.Collections;
 import java.util.concurrent.TimeUnit;
@@ -13,27 +10,20 @@ public class SimpleRedisLock implements  ILock{
 
     private StringRedisTemplate stringRedisTemplate;
 
+    private RedisScriptRegistry redisScriptRegistry;
+
     private String name;
 
-    public SimpleRedisLock(String name, StringRedisTemplate stringRedisTemplate){
+    public SimpleRedisLock(String name, StringRedisTemplate stringRedisTemplate, RedisScriptRegistry redisScriptRegistry){
         this.name = name;
         this.stringRedisTemplate = stringRedisTemplate;
+        this.redisScriptRegistry = redisScriptRegistry;
     }
 
     private static final String KEY_PREFIX = "lock:";
     private static final String ID_PREFIX = UUID.randomUUID().toString(true) + "-";
 
 
-    private static final DefaultRedisScript<Long> UNLOCK_SCRIPT;
-
-    static {
-        UNLOCK_SCRIPT = new DefaultRedisScript<>();
-        UNLOCK_SCRIPT.setLocation(new ClassPathResource("unlock.lua"));
-        UNLOCK_SCRIPT.setResultType(Long.class);
-    }
-
-
-
     @Override
     public boolean tryLock(long timeoutSec) {
         // Get Thread id
@@ -49,8 +39,8 @@ public class SimpleRedisLock implements  ILock{
     @Override
     public void unlock() {
 
-        stringRedisTemplate.execute(
-                UNLOCK_SCRIPT,
+        redisScriptRegistry.execute(
+                "unlock", Long.class,
                 Collections.singletonList(KEY_PREFIX + name),
                 ID_PREFIX + Thread.currentThread().getId());
 
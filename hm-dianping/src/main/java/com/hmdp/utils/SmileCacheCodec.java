@@ -0,0 +1,21 @@
+package com.hmdp.utils;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
+import org.springframework.stereotype.Component;
+
+/**
+ * Jackson Smile, binary JSON. Same one pass reads as the Jackson codec with smaller values and no text parsing
+ */
+@Component
+public class SmileCacheCodec extends JacksonCacheCodec {
+
+    public SmileCacheCodec(){
+        super(new ObjectMapper(new SmileFactory()));
+    }
+
+    @Override
+    public String name() {
+        return "smile";
+    }
+}
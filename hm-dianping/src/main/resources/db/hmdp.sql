@@ -1261,6 +1261,10 @@ INSERT INTO `tb_voucher` VALUES (1, 1, '50元代金券', '周一至周日均可
 
 -- ----------------------------
 -- Table structure for tb_voucher_order
+-- One live order per user and voucher, cancelled orders (status 4) leave live_voucher_id NULL so the user can buy again.
+-- Upgrade an existing table with:
+-- ALTER TABLE `tb_voucher_order` ADD COLUMN `live_voucher_id` bigint(20) UNSIGNED GENERATED ALWAYS AS (IF(`status` = 4, NULL, `voucher_id`)) VIRTUAL,
+--   ADD UNIQUE INDEX `uk_user_voucher`(`user_id`, `live_voucher_id`);
 -- ----------------------------
 DROP TABLE IF EXISTS `tb_voucher_order`;
 CREATE TABLE `tb_voucher_order`  (
@@ -1274,7 +1278,9 @@ CREATE TABLE `tb_voucher_order`  (
   `use_time` timestamp NULL DEFAULT NULL COMMENT '核销时间',
   `refund_time` timestamp NULL DEFAULT NULL COMMENT '退款时间',
   `update_time` timestamp NOT NULL DEFAULT CURRENT_TIMESTAMP ON UPDATE CURRENT_TIMESTAMP COMMENT '更新时间',
-  PRIMARY KEY (`id`) USING BTREE
+  `live_voucher_id` bigint(20) UNSIGNED GENERATED ALWAYS AS (IF(`status` = 4, NULL, `voucher_id`)) VIRTUAL COMMENT 'voucher_id of orders not cancelled, one per user',
+  PRIMARY KEY (`id`) USING BTREE,
+  UNIQUE INDEX `uk_user_voucher`(`user_id`, `live_voucher_id`) USING BTREE
 ) ENGINE = InnoDB CHARACTER SET = utf8mb4 COLLATE = utf8mb4_general_ci ROW_FORMAT = Compact;
 
 -- ----------------------------
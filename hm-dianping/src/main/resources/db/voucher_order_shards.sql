@@ -0,0 +1,80 @@
+-- ----------------------------
+-- Order table shards for hmdp.order.shards = 4
+-- Rows are placed by user_id % 4, order ids carry the shard in their low bits (RedisWorker.nextId(keyPrefix, gene))
+-- For another shard count create tb_voucher_order_0 .. tb_voucher_order_{N-1} the same way
+-- Shards created before live_voucher_id are upgraded with:
+-- ALTER TABLE `tb_voucher_order_0` ADD COLUMN `live_voucher_id` bigint(20) UNSIGNED GENERATED ALWAYS AS (IF(`status` = 4, NULL, `voucher_id`)) VIRTUAL,
+--   DROP INDEX `uk_user_voucher`, ADD UNIQUE INDEX `uk_user_voucher`(`user_id`, `live_voucher_id`);
+-- ----------------------------
+SET NAMES utf8mb4;
+SET FOREIGN_KEY_CHECKS = 0;
+
+DROP TABLE IF EXISTS `tb_voucher_order_0`;
+CREATE TABLE `tb_voucher_order_0`  (
+  `id` bigint(20) NOT NULL COMMENT '主键',
+  `user_id` bigint(20) UNSIGNED NOT NULL COMMENT '下单的用户id',
+  `voucher_id` bigint(20) UNSIGNED NOT NULL COMMENT '购买的代金券id',
+  `pay_type` tinyint(1) UNSIGNED NOT NULL DEFAULT 1 COMMENT '支付方式 1：余额支付；2：支付宝；3：微信',
+  `status` tinyint(1) UNSIGNED NOT NULL DEFAULT 1 COMMENT '订单状态，1：未支付；2：已支付；3：已核销；4：已取消；5：退款中；6：已退款',
+  `create_time` timestamp NOT NULL DEFAULT CURRENT_TIMESTAMP COMMENT '下单时间',
+  `pay_time` timestamp NULL DEFAULT NULL COMMENT '支付时间',
+  `use_time` timestamp NULL DEFAULT NULL COMMENT '核销时间',
+  `refund_time` timestamp NULL DEFAULT NULL COMMENT '退款时间',
+  `update_time` timestamp NOT NULL DEFAULT CURRENT_TIMESTAMP ON UPDATE CURRENT_TIMESTAMP COMMENT '更新时间',
+  `live_voucher_id` bigint(20) UNSIGNED GENERATED ALWAYS AS (IF(`status` = 4, NULL, `voucher_id`)) VIRTUAL COMMENT 'voucher_id of orders not cancelled, one per user',
+  PRIMARY KEY (`id`) USING BTREE,
+  UNIQUE INDEX `uk_user_voucher`(`user_id`, `live_voucher_id`) USING BTREE
+) ENGINE = InnoDB CHARACTER SET = utf8mb4 COLLATE = utf8mb4_general_ci ROW_FORMAT = Compact;
+
+DROP TABLE IF EXISTS `tb_voucher_order_1`;
+CREATE TABLE `tb_voucher_order_1`  (
+  `id` bigint(20) NOT NULL COMMENT '主键',
+  `user_id` bigint(20) UNSIGNED NOT NULL COMMENT '下单的用户id',
+  `voucher_id` bigint(20) UNSIGNED NOT NULL COMMENT '购买的代金券id',
+  `pay_type` tinyint(1) UNSIGNED NOT NULL DEFAULT 1 COMMENT '支付方式 1：余额支付；2：支付宝；3：微信',
+  `status` tinyint(1) UNSIGNED NOT NULL DEFAULT 1 COMMENT '订单状态，1：未支付；2：已支付；3：已核销；4：已取消；5：退款中；6：已退款',
+  `create_time` timestamp NOT NULL DEFAULT CURRENT_TIMESTAMP COMMENT '下单时间',
+  `pay_time` timestamp NULL DEFAULT NULL COMMENT '支付时间',
+  `use_time` timestamp NULL DEFAULT NULL COMMENT '核销时间',
+  `refund_time` timestamp NULL DEFAULT NULL COMMENT '退款时间',
+  `update_time` timestamp NOT NULL DEFAULT CURRENT_TIMESTAMP ON UPDATE CURRENT_TIMESTAMP COMMENT '更新时间',
+  `live_voucher_id` bigint(20) UNSIGNED GENERATED ALWAYS AS (IF(`status` = 4, NULL, `voucher_id`)) VIRTUAL COMMENT 'voucher_id of orders not cancelled, one per user',
+  PRIMARY KEY (`id`) USING BTREE,
+  UNIQUE INDEX `uk_user_voucher`(`user_id`, `live_voucher_id`) USING BTREE
+) ENGINE = InnoDB CHARACTER SET = utf8mb4 COLLATE = utf8mb4_general_ci ROW_FORMAT = Compact;
+
+DROP TABLE IF EXISTS `tb_voucher_order_2`;
+CREATE TABLE `tb_voucher_order_2`  (
+  `id` bigint(20) NOT NULL COMMENT '主键',
+  `user_id` bigint(20) UNSIGNED NOT NULL COMMENT '下单的用户id',
+  `voucher_id` bigint(20) UNSIGNED NOT NULL COMMENT '购买的代金券id',
+  `pay_type` tinyint(1) UNSIGNED NOT NULL DEFAULT 1 COMMENT '支付方式 1：余额支付；2：支付宝；3：微信',
+  `status` tinyint(1) UNSIGNED NOT NULL DEFAULT 1 COMMENT '订单状态，1：未支付；2：已支付；3：已核销；4：已取消；5：退款中；6：已退款',
+  `create_time` timestamp NOT NULL DEFAULT CURRENT_TIMESTAMP COMMENT '下单时间',
+  `pay_time` timestamp NULL DEFAULT NULL COMMENT '支付时间',
+  `use_time` timestamp NULL DEFAULT NULL COMMENT '核销时间',
+  `refund_time` timestamp NULL DEFAULT NULL COMMENT '退款时间',
+  `update_time` timestamp NOT NULL DEFAULT CURRENT_TIMESTAMP ON UPDATE CURRENT_TIMESTAMP COMMENT '更新时间',
+  `live_voucher_id` bigint(20) UNSIGNED GENERATED ALWAYS AS (IF(`status` = 4, NULL, `voucher_id`)) VIRTUAL COMMENT 'voucher_id of orders not cancelled, one per user',
+  PRIMARY KEY (`id`) USING BTREE,
+  UNIQUE INDEX `uk_user_voucher`(`user_id`, `live_voucher_id`) USING BTREE
+) ENGINE = InnoDB CHARACTER SET = utf8mb4 COLLATE = utf8mb4_general_ci ROW_FORMAT = Compact;
+
+DROP TABLE IF EXISTS `tb_voucher_order_3`;
+CREATE TABLE `tb_voucher_order_3`  (
+  `id` bigint(20) NOT NULL COMMENT '主键',
+  `user_id` bigint(20) UNSIGNED NOT NULL COMMENT '下单的用户id',
+  `voucher_id` bigint(20) UNSIGNED NOT NULL COMMENT '购买的代金券id',
+  `pay_type` tinyint(1) UNSIGNED NOT NULL DEFAULT 1 COMMENT '支付方式 1：余额支付；2：支付宝；3：微信',
+  `status` tinyint(1) UNSIGNED NOT NULL DEFAULT 1 COMMENT '订单状态，1：未支付；2：已支付；3：已核销；4：已取消；5：退款中；6：已退款',
+  `create_time` timestamp NOT NULL DEFAULT CURRENT_TIMESTAMP COMMENT '下单时间',
+  `pay_time` timestamp NULL DEFAULT NULL COMMENT '支付时间',
+  `use_time` timestamp NULL DEFAULT NULL COMMENT '核销时间',
+  `refund_time` timestamp NULL DEFAULT NULL COMMENT '退款时间',
+  `update_time` timestamp NOT NULL DEFAULT CURRENT_TIMESTAMP ON UPDATE CURRENT_TIMESTAMP COMMENT '更新时间',
+  `live_voucher_id` bigint(20) UNSIGNED GENERATED ALWAYS AS (IF(`status` = 4, NULL, `voucher_id`)) VIRTUAL COMMENT 'voucher_id of orders not cancelled, one per user',
+  PRIMARY KEY (`id`) USING BTREE,
+  UNIQUE INDEX `uk_user_voucher`(`user_id`, `live_voucher_id`) USING BTREE
+) ENGINE = InnoDB CHARACTER SET = utf8mb4 COLLATE = utf8mb4_general_ci ROW_FORMAT = Compact;
+
+SET FOREIGN_KEY_CHECKS = 1;
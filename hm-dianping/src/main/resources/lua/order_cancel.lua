@@ -0,0 +1,36 @@
+-- give back the stock of cancelled orders, members are orderId:voucherId:userId
+-- safe to run again for the same order, the stock only goes back once per order id
+local statusTtl = ARGV[1]
+
+-- how long an order is remembered as given back, covers orders delivered again and scheduled anew
+local cancelledTtl = ARGV[2]
+
+local restored = 0
+for i = 3, #ARGV do
+    local member = ARGV[i]
+    local orderId, voucherId, userId = string.match(member, '(%d+):(%d+):(%d+)')
+
+    if redis.call('set', 'order:cancelled:' .. orderId, '1', 'NX', 'EX', cancelledTtl) then
+        local stockKey = 'seckill:stock:' .. voucherId
+        local orderKey = 'seckill:order:' .. voucherId
+        local segments = tonumber(redis.call('get', 'seckill:segments:' .. voucherId))
+        if segments ~= nil and segments > 1 then
+            -- back to the user's own segment
+            local home = tonumber(userId) % segments
+            stockKey = stockKey .. ':' .. home
+            orderKey = orderKey .. ':' .. home
+        end
+
+        -- the sale may be over and its keys cleaned up already
+        if redis.call('exists', stockKey) == 1 then
+            redis.call('incrby', stockKey, 1)
+        end
+        -- the user may buy again
+        redis.call('srem', orderKey, userId)
+        restored = restored + 1
+    end
+    -- the deadline only goes once Redis is done, until then the order is claimed again after retry-after
+    redis.call('zrem', 'order:timeout', member)
+    redis.call('set', 'order:status:' .. orderId, 'CANCELLED', 'EX', statusTtl)
+end
+return restored
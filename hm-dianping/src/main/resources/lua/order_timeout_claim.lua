@@ -0,0 +1,8 @@
+-- take up to ARGV[2] orders whose payment deadline (score) passed before ARGV[1]
+-- they are pushed back by ARGV[3] ms instead of removed, so they come back if this node dies before cancelling them
+local now = tonumber(ARGV[1])
+local due = redis.call('zrangebyscore', 'order:timeout', '-inf', now, 'LIMIT', 0, tonumber(ARGV[2]))
+for _, member in ipairs(due) do
+    redis.call('zadd', 'order:timeout', now + tonumber(ARGV[3]), member)
+end
+return due
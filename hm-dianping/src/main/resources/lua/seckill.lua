@@ -0,0 +1,63 @@
+-- 1.1. 优惠券id
+local voucherId = ARGV[1]
+-- 1.2. 用户id
+local userId = ARGV[2]
+
+local orderId = ARGV[3]
+
+local now = tonumber(ARGV[4])
+
+local statusTtl = ARGV[5]
+
+
+
+-- 2. 数据key, picked by VoucherOrderServiceImpl, see SeckillStockSegments
+-- stock key, seckill:stock:{id} or one segment seckill:stock:{id}:{i}
+local stockKey = KEYS[1]
+-- order key, seckill:order:{id} or the user's home segment seckill:order:{id}:{userId % K}
+local orderKey = KEYS[2]
+-- stream.orders
+local streamKey = KEYS[3]
+-- order:status:{orderId}
+local statusKey = KEYS[5]
+
+-- 2.1 秒杀时间窗口 seckill:window:{id}, rejected before the stock is read, see VoucherServiceImpl.preheatSeckillVouchers
+local window = redis.call('hmget', KEYS[4], 'begin', 'end')
+if window[1] and now < tonumber(window[1]) then
+    return 3 -- 秒杀尚未开始，返回3
+end
+if window[2] and now > tonumber(window[2]) then
+    return 4 -- 秒杀已经结束，返回4
+end
+
+-- 3. 判断库存是否充足
+local stock = redis.call('get', stockKey)
+if stock == false then
+    return 1 -- 无库存信息，返回1
+end
+
+if tonumber(stock) <= 0 then
+    return 1 -- 库存不足，返回1
+end
+
+-- 4. 判断用户是否已下单
+if redis.call('sismember', orderKey, userId) == 1 then
+    return 2 -- 用户已下单，返回2
+end
+
+-- 5. 扣库存
+redis.call('incrby', stockKey, -1)
+
+-- 6. 下单（保存用户ID）
+redis.call('sadd', orderKey, userId)
+
+
+-- send message to queue
+redis.call('xadd', streamKey, '*', 'userId', userId, 'voucherId', voucherId, 'id', orderId )
+
+-- order status for polling, the stream consumer flips it to CREATED / FAILED
+redis.call('set', statusKey, 'QUEUED', 'EX', statusTtl)
+
+
+-- 7. 返回成功
+return 0
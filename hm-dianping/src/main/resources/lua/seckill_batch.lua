@@ -0,0 +1,91 @@
+-- Several vouchers for one user in a single call, same checks as seckill.lua per voucher
+-- 1.1. 用户id
+local userId = ARGV[1]
+
+local now = tonumber(ARGV[2])
+
+local statusTtl = ARGV[3]
+
+-- '1' = buy all or none, '0' = buy whatever is available
+local allOrNothing = ARGV[4] == '1'
+
+-- 1.2. then voucherId, orderId pairs
+
+-- returns the result code and the stock key to take one unit from
+local function check(voucherId)
+    local window = redis.call('hmget', 'seckill:window:' .. voucherId, 'begin', 'end')
+    if window[1] and now < tonumber(window[1]) then
+        return 3 -- 秒杀尚未开始，返回3
+    end
+    if window[2] and now > tonumber(window[2]) then
+        return 4 -- 秒杀已经结束，返回4
+    end
+
+    local stockKey = 'seckill:stock:' .. voucherId
+    local orderKey = 'seckill:order:' .. voucherId
+    local segments = tonumber(redis.call('get', 'seckill:segments:' .. voucherId))
+    if segments ~= nil and segments > 1 then
+        local home = tonumber(userId) % segments
+        orderKey = orderKey .. ':' .. home
+        if redis.call('sismember', orderKey, userId) == 1 then
+            return 2 -- 用户已下单，返回2
+        end
+        for i = 0, segments - 1 do
+            local segmentKey = stockKey .. ':' .. ((home + i) % segments)
+            local segmentStock = tonumber(redis.call('get', segmentKey))
+            if segmentStock ~= nil and segmentStock > 0 then
+                return 0, segmentKey, orderKey
+            end
+        end
+        return 1 -- 所有分段库存不足，返回1
+    end
+
+    local stock = tonumber(redis.call('get', stockKey))
+    if stock == nil or stock <= 0 then
+        return 1 -- 库存不足，返回1
+    end
+    if redis.call('sismember', orderKey, userId) == 1 then
+        return 2 -- 用户已下单，返回2
+    end
+    return 0, stockKey, orderKey
+end
+
+-- 2. check every voucher before touching any stock
+local results = {}
+local stockKeys = {}
+local orderKeys = {}
+local failed = false
+for i = 5, #ARGV, 2 do
+    local n = (i - 3) / 2
+    local code, stockKey, orderKey = check(ARGV[i])
+    results[n] = code
+    stockKeys[n] = stockKey
+    orderKeys[n] = orderKey
+    if code ~= 0 then
+        failed = true
+    end
+end
+
+-- 3. nothing is bought when one fails, the others report 5
+if allOrNothing and failed then
+    for n = 1, #results do
+        if results[n] == 0 then
+            results[n] = 5
+        end
+    end
+    return results
+end
+
+-- 4. 扣库存, 下单, one stream entry per voucher
+for n = 1, #results do
+    if results[n] == 0 then
+        local voucherId = ARGV[2 * n + 3]
+        local orderId = ARGV[2 * n + 4]
+        redis.call('incrby', stockKeys[n], -1)
+        redis.call('sadd', orderKeys[n], userId)
+        redis.call('xadd', 'stream.orders', '*', 'userId', userId, 'voucherId', voucherId, 'id', orderId )
+        redis.call('set', 'order:status:' .. orderId, 'QUEUED', 'EX', statusTtl)
+    end
+end
+
+return results
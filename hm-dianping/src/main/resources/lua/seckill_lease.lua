@@ -0,0 +1,48 @@
+-- move up to ARGV[3] units of stock into this node's lease
+-- returns {granted, sale end millis or -1}, or {-3} / {-4} outside the sale window
+local voucherId = ARGV[1]
+local leaseKey = ARGV[2]
+local wanted = tonumber(ARGV[3])
+local aliveKey = ARGV[4]
+local aliveTtl = ARGV[5]
+local now = tonumber(ARGV[6])
+
+-- sale window, see VoucherServiceImpl.preheatSeckillVouchers
+local window = redis.call('hmget', 'seckill:window:' .. voucherId, 'begin', 'end')
+if window[1] and now < tonumber(window[1]) then
+    return { -3 }
+end
+if window[2] and now > tonumber(window[2]) then
+    return { -4 }
+end
+
+local stockKey = 'seckill:stock:' .. voucherId
+local stockKeys = { stockKey }
+local segments = tonumber(redis.call('get', 'seckill:segments:' .. voucherId))
+if segments ~= nil and segments > 1 then
+    stockKeys = {}
+    for i = 0, segments - 1 do
+        stockKeys[i + 1] = stockKey .. ':' .. i
+    end
+end
+
+local granted = 0
+for _, key in ipairs(stockKeys) do
+    if granted >= wanted then
+        break
+    end
+    local stock = tonumber(redis.call('get', key))
+    if stock ~= nil and stock > 0 then
+        local take = math.min(stock, wanted - granted)
+        redis.call('incrby', key, -take)
+        granted = granted + take
+    end
+end
+
+-- remember what this node holds, so it can be given back after a crash
+if granted > 0 then
+    redis.call('hincrby', leaseKey, voucherId, granted)
+    -- the lease is taken over by other nodes once this key expires
+    redis.call('set', aliveKey, '1', 'PX', aliveTtl)
+end
+return { granted, tonumber(window[2]) or -1 }
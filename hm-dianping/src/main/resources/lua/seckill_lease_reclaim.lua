@@ -0,0 +1,26 @@
+-- give back everything leased to a node that stopped renewing its lease, every voucher of ARGV[1]
+local leaseKey = ARGV[1]
+local aliveKey = ARGV[2]
+
+-- checked here so two nodes never both return it, and a node that came back keeps its lease
+if redis.call('exists', aliveKey) == 1 then
+    return 0
+end
+
+local leases = redis.call('hgetall', leaseKey)
+local returned = 0
+for i = 1, #leases, 2 do
+    local voucherId = leases[i]
+    local amount = tonumber(leases[i + 1])
+    if amount > 0 then
+        local stockKey = 'seckill:stock:' .. voucherId
+        local segments = tonumber(redis.call('get', 'seckill:segments:' .. voucherId))
+        if segments ~= nil and segments > 1 then
+            stockKey = stockKey .. ':0'
+        end
+        redis.call('incrby', stockKey, amount)
+        returned = returned + amount
+    end
+end
+redis.call('del', leaseKey)
+return returned
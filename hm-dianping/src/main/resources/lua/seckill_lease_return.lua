@@ -0,0 +1,26 @@
+-- give ARGV[3] unsold units of this node's lease back to the stock
+local voucherId = ARGV[1]
+local leaseKey = ARGV[2]
+local amount = tonumber(ARGV[3])
+
+-- never return more than the node still holds
+local leased = tonumber(redis.call('hget', leaseKey, voucherId))
+if leased == nil then
+    return 0
+end
+amount = math.min(amount, leased)
+if amount <= 0 then
+    return 0
+end
+
+local stockKey = 'seckill:stock:' .. voucherId
+local segments = tonumber(redis.call('get', 'seckill:segments:' .. voucherId))
+if segments ~= nil and segments > 1 then
+    stockKey = stockKey .. ':0'
+end
+redis.call('incrby', stockKey, amount)
+
+if redis.call('hincrby', leaseKey, voucherId, -amount) <= 0 then
+    redis.call('hdel', leaseKey, voucherId)
+end
+return amount
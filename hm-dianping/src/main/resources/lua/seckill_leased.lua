@@ -0,0 +1,31 @@
+-- place an order from stock this node already leased, only the duplicate check happens here
+local voucherId = ARGV[1]
+local userId = ARGV[2]
+local orderId = ARGV[3]
+local leaseKey = ARGV[4]
+local statusTtl = ARGV[5]
+
+local orderKey = 'seckill:order:' .. voucherId
+local segments = tonumber(redis.call('get', 'seckill:segments:' .. voucherId))
+if segments ~= nil and segments > 1 then
+    orderKey = orderKey .. ':' .. (tonumber(userId) % segments)
+end
+
+if redis.call('sismember', orderKey, userId) == 1 then
+    return 2 -- 用户已下单，返回2
+end
+
+-- the lease was given back by another node while this one was unreachable, the local units are gone
+local leased = tonumber(redis.call('hget', leaseKey, voucherId))
+if leased == nil or leased < 1 then
+    return 6
+end
+
+-- the unit is sold, it no longer belongs to the lease
+redis.call('hincrby', leaseKey, voucherId, -1)
+
+redis.call('sadd', orderKey, userId)
+redis.call('xadd', 'stream.orders', '*', 'userId', userId, 'voucherId', voucherId, 'id', orderId )
+-- order status for polling, the stream consumer flips it to CREATED / FAILED
+redis.call('set', 'order:status:' .. orderId, 'QUEUED', 'EX', statusTtl)
+return 0
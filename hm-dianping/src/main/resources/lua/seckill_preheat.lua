@@ -0,0 +1,14 @@
+-- load the stock of a voucher unless it already has stock keys in Redis, then key, value pairs
+-- a voucher sold before, e.g. on a single stock key before segments were turned on, keeps its layout and stock
+local voucherId = ARGV[1]
+
+if redis.call('exists', 'seckill:stock:' .. voucherId) == 1
+        or redis.call('exists', 'seckill:order:' .. voucherId) == 1
+        or redis.call('exists', 'seckill:segments:' .. voucherId) == 1 then
+    return 0
+end
+
+for i = 2, #ARGV, 2 do
+    redis.call('set', ARGV[i], ARGV[i + 1])
+end
+return 1
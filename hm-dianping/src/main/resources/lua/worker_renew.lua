@@ -0,0 +1,5 @@
+-- extend the worker id lease only if this node still owns it
+if(redis.call('get',KEYS[1]) == ARGV[1]) then
+    return redis.call('expire', KEYS[1], ARGV[2])
+end
+return 0
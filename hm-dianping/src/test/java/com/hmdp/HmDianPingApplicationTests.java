@@ -1,14 +1,48 @@
 package com.hmdp;
 
+import com.baomidou.mybatisplus.core.conditions.query.QueryWrapper;
+import com.hmdp.entity.SeckillVoucher;
+import com.hmdp.entity.Shop;
+import com.hmdp.entity.VoucherOrder;
+import com.hmdp.service.ISeckillVoucherService;
+import com.hmdp.service.IVoucherOrderService;
 import com.hmdp.service.impl.ShopServiceImpl;
+import com.hmdp.utils.BloomFilter;
+import com.hmdp.utils.CacheClient;
+import com.hmdp.utils.CacheCodec;
+import com.hmdp.utils.OrderShardRouter;
+import com.hmdp.utils.RedisScriptRegistry;
 import com.hmdp.utils.RedisWorker;
+import com.hmdp.utils.SeckillStockSegments;
 import org.junit.jupiter.api.Test;
+import org.redisson.api.RLock;
+import org.redisson.api.RedissonClient;
 import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.transaction.support.TransactionTemplate;
 
 import javax.annotation.Resource;
+import java.lang.management.ManagementFactory;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+import static com.hmdp.utils.RedisConstants.ORDER_STATUS_KEY;
+import static com.hmdp.utils.RedisConstants.SECKILL_ORDER_KEY;
+import static com.hmdp.utils.RedisConstants.SECKILL_SEGMENTS_KEY;
+import static com.hmdp.utils.RedisConstants.SECKILL_STOCK_KEY;
+import static com.hmdp.utils.RedisConstants.SECKILL_WINDOW_KEY;
 
 @SpringBootTest
 class HmDianPingApplicationTests {
@@ -19,6 +53,33 @@ class HmDianPingApplicationTests {
     @Resource
     private RedisWorker redisWorker;
 
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private IVoucherOrderService voucherOrderService;
+
+    @Resource
+    private ISeckillVoucherService seckillVoucherService;
+
+    @Resource
+    private RedissonClient redissonClient;
+
+    @Resource
+    private TransactionTemplate transactionTemplate;
+
+    @Resource
+    private OrderShardRouter orderShardRouter;
+
+    @Resource
+    private RedisScriptRegistry redisScriptRegistry;
+
+    @Resource
+    private CacheClient cacheClient;
+
+    @Resource
+    private List<CacheCodec> cacheCodecs;
+
     private ExecutorService es = Executors.newFixedThreadPool(500);
 
     @Test
@@ -47,6 +108,286 @@ class HmDianPingApplicationTests {
         shopService.saveShop2Redis(1L, 10L);
     }
 
+    // Compare seckill.lua on a single stock key against segmented stock, each user buys from its home segment.
+    // The vouchers only exist in Redis, orders go to a stream of their own that no consumer reads and which is removed afterwards
+    @Test
+    void testSegmentedStockThroughput() throws InterruptedException {
+        String testStream = "stream.orders.test";
+        DefaultRedisScript<Long> script = new DefaultRedisScript<>();
+        script.setLocation(new ClassPathResource("lua/seckill.lua"));
+        script.setResultType(Long.class);
+
+        long singleVoucherId = 900001L;
+        long segmentedVoucherId = 900002L;
+        int segments = 8;
+        int orders = 30000;
+
+        stringRedisTemplate.opsForValue().set(SECKILL_STOCK_KEY + singleVoucherId, String.valueOf(orders));
+        for(int i = 0; i < segments; i++){
+            stringRedisTemplate.opsForValue().set(SECKILL_STOCK_KEY + segmentedVoucherId + ":" + i, String.valueOf(orders / segments));
+        }
+        stringRedisTemplate.opsForValue().set(SECKILL_SEGMENTS_KEY + segmentedVoucherId, String.valueOf(segments));
+
+        long single = runSeckill(script, testStream, singleVoucherId, 1, orders);
+        long segmented = runSeckill(script, testStream, segmentedVoucherId, segments, orders);
+        System.out.println("single key time = " + single + ", orders/s = " + orders * 1000L / Math.max(single, 1));
+        System.out.println("segmented time = " + segmented + ", orders/s = " + orders * 1000L / Math.max(segmented, 1));
+
+        // every user bought exactly once and stock is used up
+        System.out.println("single stock left = " + stringRedisTemplate.opsForValue().get(SECKILL_STOCK_KEY + singleVoucherId)
+                + ", buyers = " + stringRedisTemplate.opsForSet().size(SECKILL_ORDER_KEY + singleVoucherId));
+
+        List<String> keys = new ArrayList<>();
+        keys.add(SECKILL_STOCK_KEY + singleVoucherId);
+        keys.add(SECKILL_ORDER_KEY + singleVoucherId);
+        keys.add(SECKILL_SEGMENTS_KEY + segmentedVoucherId);
+        for(int i = 0; i < segments; i++){
+            keys.add(SECKILL_STOCK_KEY + segmentedVoucherId + ":" + i);
+            keys.add(SECKILL_ORDER_KEY + segmentedVoucherId + ":" + i);
+        }
+        keys.add(testStream);
+        stringRedisTemplate.delete(keys);
+    }
+
+    private long runSeckill(DefaultRedisScript<Long> script, String stream, long voucherId, int segments, int orders) throws InterruptedException {
+        int threads = 300;
+        int perThread = orders / threads;
+        CountDownLatch latch = new CountDownLatch(threads);
+        long begin = System.currentTimeMillis();
+        for(int t = 0; t < threads; t++){
+            int offset = t * perThread;
+            es.submit(() -> {
+                for(int i = 0; i < perThread; i++){
+                    long userId = offset + i + 1;
+                    int home = (int) (userId % segments);
+                    String orderId = String.valueOf(redisWorker.nextId("order"));
+                    List<String> keys = Arrays.asList(SeckillStockSegments.stockKey(voucherId, segments, home),
+                            SeckillStockSegments.orderKey(voucherId, segments, home), stream, SECKILL_WINDOW_KEY + voucherId,
+                            ORDER_STATUS_KEY + orderId);
+                    // the status keys expire on their own after a minute
+                    stringRedisTemplate.execute(script, keys, String.valueOf(voucherId), String.valueOf(userId), orderId,
+                            String.valueOf(System.currentTimeMillis()), "60");
+                }
+                latch.countDown();
+            });
+        }
+        latch.await();
+        return System.currentTimeMillis() - begin;
+    }
+
+    // Order creation by the stream consumer: Redisson lock + count + stock update + insert (before)
+    // against insert first on the unique (user_id, voucher_id) key + stock update (after).
+    // Needs the uk_user_voucher index from hmdp.sql
+    @Test
+    void testIdempotentOrderInsertThroughput() throws InterruptedException {
+        long voucherId = 900003L;
+        int orders = 2000;
+        SeckillVoucher voucher = new SeckillVoucher()
+                .setVoucherId(voucherId)
+                .setStock(orders * 2)
+                .setBeginTime(LocalDateTime.now())
+                .setEndTime(LocalDateTime.now().plusHours(1));
+        seckillVoucherService.save(voucher);
+
+        try {
+            long before = runOrders(voucherId, 1, orders, order -> {
+                RLock lock = redissonClient.getLock("lock:order:" + order.getUserId());
+                if(!lock.tryLock()){
+                    return;
+                }
+                try {
+                    orderShardRouter.route(orderShardRouter.shardOfUser(order.getUserId()), () -> transactionTemplate.execute(status -> {
+                        int count = voucherOrderService.query().eq("user_id", order.getUserId()).eq("voucher_id", voucherId).count();
+                        if(count > 0){
+                            return false;
+                        }
+                        boolean success = seckillVoucherService.update().setSql("stock = stock -1")
+                                .eq("voucher_id", voucherId).gt("stock", 0).update();
+                        return success && voucherOrderService.save(order);
+                    }));
+                } finally {
+                    lock.unlock();
+                }
+            });
+            long after = runOrders(voucherId, orders + 1, orders, voucherOrderService::createVoucherOrder);
+
+            System.out.println("check then insert time = " + before + ", orders/s = " + orders * 1000L / Math.max(before, 1));
+            System.out.println("insert on unique key time = " + after + ", orders/s = " + orders * 1000L / Math.max(after, 1));
 
+            // a second order of the same user is a normal false, not an error
+            VoucherOrder again = new VoucherOrder().setId(redisWorker.nextId("order")).setUserId(1L).setVoucherId(voucherId);
+            System.out.println("duplicate created = " + voucherOrderService.createVoucherOrder(again));
+        } finally {
+            for(int shard = 0; shard < orderShardRouter.getShards(); shard++){
+                orderShardRouter.route(shard, () -> voucherOrderService.remove(new QueryWrapper<VoucherOrder>().eq("voucher_id", voucherId)));
+            }
+            seckillVoucherService.removeById(voucherId);
+        }
+    }
+
+    // A cancelled order frees the user to buy the voucher again, a second live order is still rejected.
+    // Needs the uk_user_voucher index on live_voucher_id from hmdp.sql
+    @Test
+    void testCancelThenRebuy() {
+        long voucherId = 900004L;
+        long userId = 1L;
+        SeckillVoucher voucher = new SeckillVoucher()
+                .setVoucherId(voucherId)
+                .setStock(10)
+                .setBeginTime(LocalDateTime.now())
+                .setEndTime(LocalDateTime.now().plusHours(1));
+        seckillVoucherService.save(voucher);
 
+        try {
+            VoucherOrder first = new VoucherOrder().setId(redisWorker.nextId("order")).setUserId(userId).setVoucherId(voucherId);
+            System.out.println("first created = " + voucherOrderService.createVoucherOrder(first));
+            System.out.println("cancelled = " + voucherOrderService.cancelUnpaidOrders(Collections.singletonList(first.getId())).size());
+
+            VoucherOrder rebuy = new VoucherOrder().setId(redisWorker.nextId("order")).setUserId(userId).setVoucherId(voucherId);
+            System.out.println("rebuy created = " + voucherOrderService.createVoucherOrder(rebuy));
+            // delivered again, still counts as created
+            System.out.println("rebuy redelivered created = " + voucherOrderService.createVoucherOrder(rebuy));
+
+            VoucherOrder second = new VoucherOrder().setId(redisWorker.nextId("order")).setUserId(userId).setVoucherId(voucherId);
+            System.out.println("second live created = " + voucherOrderService.createVoucherOrder(second));
+            System.out.println("stock = " + seckillVoucherService.getById(voucherId).getStock());
+        } finally {
+            for(int shard = 0; shard < orderShardRouter.getShards(); shard++){
+                orderShardRouter.route(shard, () -> voucherOrderService.remove(new QueryWrapper<VoucherOrder>().eq("voucher_id", voucherId)));
+            }
+            seckillVoucherService.removeById(voucherId);
+        }
+    }
+
+    private long runOrders(long voucherId, long firstUserId, int orders, Consumer<VoucherOrder> create) throws InterruptedException {
+        int threads = 20;
+        int perThread = orders / threads;
+        CountDownLatch latch = new CountDownLatch(threads);
+        long begin = System.currentTimeMillis();
+        for(int t = 0; t < threads; t++){
+            long offset = firstUserId + (long) t * perThread;
+            es.submit(() -> {
+                try {
+                    for(int i = 0; i < perThread; i++){
+                        create.accept(new VoucherOrder()
+                                .setId(redisWorker.nextId("order"))
+                                .setUserId(offset + i)
+                                .setVoucherId(voucherId));
+                    }
+                } finally {
+                    latch.countDown();
+                }
+            });
+        }
+        latch.await();
+        return System.currentTimeMillis() - begin;
+    }
+
+    // unlock.lua through the registry (EVALSHA only) against DefaultRedisScript, with a SCRIPT FLUSH half way
+    @Test
+    void testScriptRegistry() {
+        DefaultRedisScript<Long> script = new DefaultRedisScript<>();
+        script.setLocation(new ClassPathResource("lua/unlock.lua"));
+        script.setResultType(Long.class);
+        List<String> keys = Collections.singletonList("lock:script-test");
+
+        long begin = System.currentTimeMillis();
+        for (int i = 0; i < 10000; i++) {
+            stringRedisTemplate.execute(script, keys, "nobody");
+        }
+        System.out.println("DefaultRedisScript time = " + (System.currentTimeMillis() - begin));
+
+        long reloads = redisScriptRegistry.getReloads();
+        begin = System.currentTimeMillis();
+        for (int i = 0; i < 10000; i++) {
+            if(i == 5000){
+                stringRedisTemplate.execute((RedisCallback<Object>) connection -> {
+                    connection.scriptingCommands().scriptFlush();
+                    return null;
+                });
+            }
+            redisScriptRegistry.execute("unlock", Long.class, keys, "nobody");
+        }
+        System.out.println("registry time = " + (System.currentTimeMillis() - begin));
+        System.out.println("reloads = " + (redisScriptRegistry.getReloads() - reloads));
+        System.out.println("scripts = " + redisScriptRegistry.getStats());
+    }
+
+    // Measured false positive rate of the shop id filter at its configured size
+    @Test
+    void testBloomFilterFalsePositives() {
+        BloomFilter filter = new BloomFilter(1000000, 0.01);
+        for (long id = 1; id <= 1000000; id++) {
+            filter.add(id);
+        }
+        long falsePositives = 0;
+        for (long id = 1000001; id <= 2000000; id++) {
+            if(filter.mightContain(id)){
+                falsePositives++;
+            }
+        }
+        System.out.println("bytes = " + filter.getBits() / 8 + ", hashes = " + filter.getHashes());
+        System.out.println("false positive rate = " + falsePositives / 1000000.0);
+    }
+
+    // 200 concurrent misses on one key, the JVM should load it once
+    @Test
+    void testCoalescedCacheRebuild() throws InterruptedException {
+        String prefix = "cache:test:mutex:";
+        stringRedisTemplate.delete(prefix + 1);
+        AtomicInteger dbCalls = new AtomicInteger();
+        CountDownLatch latch = new CountDownLatch(200);
+        long begin = System.currentTimeMillis();
+        for (int i = 0; i < 200; i++) {
+            es.submit(() -> {
+                try {
+                    cacheClient.queryWithMutex(prefix, 1L, Shop.class, id -> {
+                        dbCalls.incrementAndGet();
+                        return shopService.getById(id);
+                    }, 1L, TimeUnit.MINUTES);
+                } finally {
+                    latch.countDown();
+                }
+            });
+        }
+        latch.await();
+        System.out.println("time = " + (System.currentTimeMillis() - begin) + ", db calls = " + dbCalls.get());
+        stringRedisTemplate.delete(prefix + 1);
+    }
+
+    // Encode and decode a logical expire Shop with every codec, allocation is per thread from the JVM
+    @Test
+    void testCacheCodecs() {
+        Shop shop = shopService.getById(1L);
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long threadId = Thread.currentThread().getId();
+        int rounds = 100000;
+        for (CacheCodec codec : cacheCodecs) {
+            byte[] bytes = codec.encodeLogical(shop, LocalDateTime.now().plusMinutes(30));
+            // warm up
+            for (int i = 0; i < rounds; i++) {
+                codec.decodeLogical(codec.encodeLogical(shop, LocalDateTime.now()), Shop.class);
+            }
+
+            long allocated = threads.getThreadAllocatedBytes(threadId);
+            long begin = System.nanoTime();
+            for (int i = 0; i < rounds; i++) {
+                codec.encodeLogical(shop, LocalDateTime.now());
+            }
+            long encodeNanos = System.nanoTime() - begin;
+            long encodeBytes = threads.getThreadAllocatedBytes(threadId) - allocated;
+
+            allocated = threads.getThreadAllocatedBytes(threadId);
+            begin = System.nanoTime();
+            for (int i = 0; i < rounds; i++) {
+                codec.decodeLogical(bytes, Shop.class);
+            }
+            long decodeNanos = System.nanoTime() - begin;
+            long decodeBytes = threads.getThreadAllocatedBytes(threadId) - allocated;
+
+            System.out.println(codec.name() + ": size = " + bytes.length
+                    + ", encode = " + encodeNanos / rounds + " ns " + encodeBytes / rounds + " B"
+                    + ", decode = " + decodeNanos / rounds + " ns " + decodeBytes / rounds + " B");
+        }
+    }
 }